@@ -0,0 +1,171 @@
+package de.einwesen.porttunnel.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import de.einwesen.porttunnel.net.BufferPool;
+import de.einwesen.porttunnel.net.ConnectionProcessor;
+import de.einwesen.porttunnel.net.SelectorTrafficEngine;
+import de.einwesen.porttunnel.net.SimpleForwardSocketFactory;
+import de.einwesen.porttunnel.net.ThreadTrafficEngine;
+import de.einwesen.porttunnel.net.TrafficEngine;
+import de.einwesen.porttunnel.net.TrafficSettings;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * A chatty client, sending small messages with TCP_NODELAY, each with a write
+ * of its own, through a tunnel to a discarding {@link LoopbackServer}. Run with
+ * coalescing off and on, for every engine:
+ *
+ * <ul>
+ * <li><i>messages</i>: Messages per second of all clients together.</li>
+ * <li><i>segments</i>: Reads of the target per second, as the packets the
+ * tunnel sends.</li>
+ * <li><i>savedWrites</i>: Reads of the tunnel per second, which were written
+ * together with an earlier one, each saving a write syscall.</li>
+ * </ul>
+ *
+ * Not run by default, e.g. <i>ant bench -Dbench.args="CoalescingBenchmark"</i>.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CoalescingBenchmark {
+
+	public static final int MESSAGE_SIZE = 32;
+	public static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The tunnel under test, shared by all clients
+	 */
+	@State(Scope.Benchmark)
+	public static class TunnelState {
+
+		@Param({ForwardingBenchmark.ENGINE_THREAD, ForwardingBenchmark.ENGINE_CHANNEL, ForwardingBenchmark.ENGINE_NIO})
+		public String engine;
+
+		/** In microseconds, 0 for off **/
+		@Param({"0", "200"})
+		public int coalesceDelay;
+
+		private TrafficEngine trafficEngine;
+		private LoopbackServer sinkServer;
+		private ConnectionProcessor sinkTunnel;
+		int sinkPort;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException, InterruptedException {
+			final BufferPool bufferPool = new BufferPool();
+			final TrafficSettings settings = new TrafficSettings(BUFFER_SIZE);
+			if (ForwardingBenchmark.ENGINE_NIO.equals(engine)) {
+				trafficEngine = new SelectorTrafficEngine(Runtime.getRuntime().availableProcessors(), bufferPool, settings,
+														  new ThreadTrafficEngine(false, bufferPool, settings));
+			} else {
+				trafficEngine = new ThreadTrafficEngine(ForwardingBenchmark.ENGINE_CHANNEL.equals(engine), bufferPool, settings);
+			}
+
+			sinkServer = new LoopbackServer(false, BUFFER_SIZE);
+			sinkServer.start();
+
+			sinkPort = ForwardingBenchmark.findFreePort();
+			sinkTunnel = new ConnectionProcessor(sinkPort, InetAddress.getLoopbackAddress().getHostAddress(), sinkServer.getPort(),
+												 new SimpleForwardSocketFactory(), trafficEngine);
+			sinkTunnel.setCoalescing(TimeUnit.MICROSECONDS.toNanos(coalesceDelay), 0);
+			final Thread t = new Thread(sinkTunnel, "Tunnel-" + sinkPort);
+			t.setDaemon(true);
+			t.start();
+			ForwardingBenchmark.awaitListening(sinkPort);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			sinkTunnel.stopRunning();
+			sinkTunnel.closeAllConnections();
+			trafficEngine.shutdown();
+			sinkServer.close();
+		}
+	}
+
+	/**
+	 * Connection of a single client
+	 */
+	@State(Scope.Thread)
+	public static class ClientState {
+
+		private final byte[] message = new byte[MESSAGE_SIZE];
+		private Socket socket;
+		private OutputStream out;
+
+		@Setup(Level.Trial)
+		public void setUp(TunnelState tunnel) throws IOException {
+			socket = ForwardingBenchmark.connect(tunnel.sinkPort);
+			out = socket.getOutputStream();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Reported by JMH as rate per second. The counters of the tunnel and the
+	 * target are shared, so every client reports its share of them.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+
+		public long messages;
+		public double segments;
+		public double savedWrites;
+
+		private long startReads;
+		private long startCoalesced;
+
+		@Setup(Level.Iteration)
+		public void reset(TunnelState tunnel) {
+			messages = 0;
+			segments = 0;
+			savedWrites = 0;
+			startReads = tunnel.sinkServer.getReads();
+			startCoalesced = tunnel.sinkTunnel.getMetrics().getCoalescedReads();
+		}
+
+		@TearDown(Level.Iteration)
+		public void collect(TunnelState tunnel, BenchmarkParams params) {
+			segments = (tunnel.sinkServer.getReads() - startReads) / (double)params.getThreads();
+			savedWrites = (tunnel.sinkTunnel.getMetrics().getCoalescedReads() - startCoalesced) / (double)params.getThreads();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void chatty(ClientState client, Counters counters) throws IOException {
+		client.out.write(client.message);
+		counters.messages++;
+	}
+
+}
@@ -0,0 +1,237 @@
+package de.einwesen.porttunnel.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.einwesen.porttunnel.net.BufferPool;
+import de.einwesen.porttunnel.net.ConnectionProcessor;
+import de.einwesen.porttunnel.net.SelectorTrafficEngine;
+import de.einwesen.porttunnel.net.SimpleForwardSocketFactory;
+import de.einwesen.porttunnel.net.ThreadTrafficEngine;
+import de.einwesen.porttunnel.net.TrafficEngine;
+import de.einwesen.porttunnel.net.TrafficSettings;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Forwards through loopback to a {@link LoopbackServer} in the same process,
+ * for every engine and buffer size:
+ *
+ * <ul>
+ * <li>{@link #throughput(ClientState, Bytes)}: Writes to a discarding target,
+ * the rate of the <i>megabytes</i> counter is MB/s of all clients together.</li>
+ * <li>{@link #roundTrip(ClientState)}: Sends a payload to an echoing target,
+ * and waits for all of it to come back.</li>
+ * </ul>
+ *
+ * Every benchmark thread is a client with connections of its own, so the
+ * concurrency is the thread count, see {@link ForwardingBenchmarkRunner}.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ForwardingBenchmark {
+
+	public static final String ENGINE_THREAD = "thread";
+	public static final String ENGINE_CHANNEL = "channel";
+	public static final String ENGINE_VIRTUAL = "virtual";
+	public static final String ENGINE_NIO = "nio";
+
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * The tunnels under test, shared by all clients
+	 */
+	@State(Scope.Benchmark)
+	public static class TunnelState {
+
+		@Param({ENGINE_THREAD, ENGINE_CHANNEL, ENGINE_NIO})
+		public String engine;
+
+		@Param({"8192", "65536"})
+		public int bufferSize;
+
+		private TrafficEngine trafficEngine;
+		private LoopbackServer echoServer;
+		private LoopbackServer sinkServer;
+		private ConnectionProcessor echoTunnel;
+		private ConnectionProcessor sinkTunnel;
+		int echoPort;
+		int sinkPort;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException, InterruptedException {
+			final BufferPool bufferPool = new BufferPool();
+			final TrafficSettings settings = new TrafficSettings(bufferSize);
+			if (ENGINE_NIO.equals(engine)) {
+				trafficEngine = new SelectorTrafficEngine(Runtime.getRuntime().availableProcessors(), bufferPool, settings,
+														  new ThreadTrafficEngine(false, bufferPool, settings));
+			} else if (ENGINE_VIRTUAL.equals(engine)) {
+				trafficEngine = ThreadTrafficEngine.withVirtualThreads(false, bufferPool, settings);
+			} else {
+				trafficEngine = new ThreadTrafficEngine(ENGINE_CHANNEL.equals(engine), bufferPool, settings);
+			}
+
+			echoServer = new LoopbackServer(true, bufferSize);
+			echoServer.start();
+			sinkServer = new LoopbackServer(false, bufferSize);
+			sinkServer.start();
+
+			echoPort = findFreePort();
+			echoTunnel = startTunnel(echoPort, echoServer.getPort());
+			sinkPort = findFreePort();
+			sinkTunnel = startTunnel(sinkPort, sinkServer.getPort());
+		}
+
+		private ConnectionProcessor startTunnel(int localPort, int targetPort) throws IOException, InterruptedException {
+			final ConnectionProcessor tunnel = new ConnectionProcessor(localPort, InetAddress.getLoopbackAddress().getHostAddress(), targetPort,
+																	   new SimpleForwardSocketFactory(), trafficEngine);
+			final Thread t = new Thread(tunnel, "Tunnel-" + localPort);
+			t.setDaemon(true);
+			t.start();
+			awaitListening(localPort);
+			return tunnel;
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			echoTunnel.stopRunning();
+			sinkTunnel.stopRunning();
+			echoTunnel.closeAllConnections();
+			sinkTunnel.closeAllConnections();
+			trafficEngine.shutdown();
+			echoServer.close();
+			sinkServer.close();
+		}
+	}
+
+	/**
+	 * Connections of a single client
+	 */
+	@State(Scope.Thread)
+	public static class ClientState {
+
+		@Param({"64", "4096", "262144"})
+		public int payloadSize;
+
+		private byte[] payload;
+		private byte[] response;
+		private Socket echoSocket;
+		private Socket sinkSocket;
+		private InputStream echoIn;
+		private OutputStream echoOut;
+		private OutputStream sinkOut;
+
+		@Setup(Level.Trial)
+		public void setUp(TunnelState tunnel) throws IOException {
+			payload = new byte[payloadSize];
+			for (int i=0; i < payloadSize; i++) {
+				payload[i] = (byte)i;
+			}
+			response = new byte[payloadSize];
+
+			echoSocket = connect(tunnel.echoPort);
+			echoIn = echoSocket.getInputStream();
+			echoOut = echoSocket.getOutputStream();
+			sinkSocket = connect(tunnel.sinkPort);
+			sinkOut = sinkSocket.getOutputStream();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			echoSocket.close();
+			sinkSocket.close();
+		}
+	}
+
+	/**
+	 * Transferred data, reported by JMH as rate per second
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+
+		public double megabytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			megabytes = 0;
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void throughput(ClientState client, Bytes bytes) throws IOException {
+		client.sinkOut.write(client.payload);
+		bytes.megabytes += client.payloadSize / (1024.0 * 1024.0);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int roundTrip(ClientState client) throws IOException {
+		client.echoOut.write(client.payload);
+		int received = 0;
+		while (received < client.payloadSize) {
+			final int read = client.echoIn.read(client.response, received, client.payloadSize - received);
+			if (read < 0) {
+				throw new IOException("Connection closed after " + received + " bytes");
+			}
+			received += read;
+		}
+		return received;
+	}
+
+	static int findFreePort() throws IOException {
+		final ServerSocket probe = new ServerSocket(0);
+		try {
+			return probe.getLocalPort();
+		} finally {
+			probe.close();
+		}
+	}
+
+	static Socket connect(int port) throws IOException {
+		final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+
+	static void awaitListening(int port) throws IOException, InterruptedException {
+		final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while (true) {
+			try {
+				new Socket(InetAddress.getLoopbackAddress(), port).close();
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+}
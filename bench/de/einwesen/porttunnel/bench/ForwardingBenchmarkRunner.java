@@ -0,0 +1,57 @@
+package de.einwesen.porttunnel.bench;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Runs the {@link ForwardingBenchmark} once per concurrency level, and writes
+ * all results into a single file (JSON by default), so runs of different
+ * releases can be compared.
+ *
+ * Takes the usual JMH options, e.g. <i>-p engine=nio -rff result.json</i>.
+ * With <i>-t</i> only that concurrency is run. Other benchmarks, like the
+ * {@link CoalescingBenchmark}, run only if given by name.
+ */
+public class ForwardingBenchmarkRunner {
+
+	public static final int[] DEFAULT_CONCURRENCY = {1, 4, 16};
+	public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws Exception {
+		final CommandLineOptions cmdOptions = new CommandLineOptions(args);
+
+		final int[] concurrency = cmdOptions.getThreads().hasValue() ? new int[] {cmdOptions.getThreads().get()} : DEFAULT_CONCURRENCY;
+		final ResultFormatType format = cmdOptions.getResultFormat().orElse(ResultFormatType.JSON);
+		final String resultFile = cmdOptions.getResult().orElse(DEFAULT_RESULT_FILE);
+
+		final List<RunResult> results = new ArrayList<RunResult>();
+		for (int threads : concurrency) {
+			final ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions)
+																	  .threads(threads)
+																	  .resultFormat(format)
+																	  .result(resultFile);
+			if (cmdOptions.getIncludes().isEmpty()) {
+				options.include(ForwardingBenchmark.class.getName());
+			}
+			final Collection<RunResult> run = new Runner(options.build()).run();
+			results.addAll(run);
+		}
+
+		// Each run wrote only its own results, replace them with all of them
+		ResultFormatFactory.getInstance(format, resultFile).writeOut(results);
+		System.out.println("Results of " + results.size() + " benchmarks written to " + resultFile);
+	}
+
+}
@@ -0,0 +1,107 @@
+package de.einwesen.porttunnel.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Target of the benchmarks, running in the same process. Either echoes all
+ * data back, or reads and discards it. One thread per connection, so it does
+ * not share the engine under test.
+ *
+ * The reads are counted, as a measure of the segments the target received.
+ */
+public class LoopbackServer implements Runnable {
+
+	private final ServerSocket serverSocket;
+	private final boolean echo;
+	private final int bufferSize;
+	private final LongAdder reads = new LongAdder();
+
+	/**
+	 * Listens on an ephemeral port on loopback
+	 *
+	 * @param echo true to send the data back, false to discard it
+	 * @param bufferSize
+	 * @throws IOException
+	 */
+	public LoopbackServer(boolean echo, int bufferSize) throws IOException {
+		this.serverSocket = new ServerSocket();
+		this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		this.echo = echo;
+		this.bufferSize = bufferSize;
+	}
+
+	public void start() {
+		final Thread t = new Thread(this, (echo ? "Echo-" : "Sink-") + getPort());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				final Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, Thread.currentThread().getName() + "-" + socket.getPort());
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		final byte[] buffer = new byte[bufferSize];
+		try {
+			final InputStream in = socket.getInputStream();
+			final OutputStream out = socket.getOutputStream();
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				reads.increment();
+				if (echo) {
+					out.write(buffer, 0, read);
+				}
+			}
+		} catch (IOException e) {
+			// connection closed by the benchmark
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return reads of all connections since the start, the EOFs not included
+	 */
+	public long getReads() {
+		return reads.sum();
+	}
+
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+}
@@ -1,5 +1,7 @@
 package de.einwesen.porttunnel;
 
+import java.util.Properties;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -8,6 +10,11 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import de.einwesen.porttunnel.net.ProxyTunnelSocketFactory;
+import de.einwesen.porttunnel.net.RateLimiter;
+import de.einwesen.porttunnel.net.SocketSettings;
+import de.einwesen.porttunnel.net.TargetConnector;
+
 /**
  * 
  * @author EinWesen
@@ -16,6 +23,40 @@ import org.apache.commons.cli.ParseException;
  */
 public class CmdLineHandler {
 	
+	public static final String CMD_OPT_COALESCEBYTES = "cob";
+	public static final String CMD_OPT_COALESCEDELAY = "cod";
+	public static final String CMD_OPT_JMX = "jmx";
+	public static final String CMD_OPT_TARGETSOCKET = "tso";
+	public static final String CMD_OPT_CLIENTSOCKET = "cso";
+	public static final String CMD_OPT_BACKLOG = "bl";
+	public static final String CMD_OPT_MAXLIFETIME = "ml";
+	public static final String CMD_OPT_WRITETIMEOUT = "wt";
+	public static final String CMD_OPT_IDLETIMEOUT = "it";
+	public static final String CMD_OPT_GLOBALBANDWIDTH = "gbw";
+	public static final String CMD_OPT_BANDWIDTHBURST = "bwb";
+	public static final String CMD_OPT_CONNECTIONBANDWIDTH = "cbw";
+	public static final String CMD_OPT_BANDWIDTH = "bw";
+	public static final String CMD_OPT_METRICSPORT = "mp";
+	public static final String CMD_OPT_DRAINTIMEOUT = "dt";
+	public static final String CMD_OPT_WATCH = "w";
+	public static final String CMD_OPT_CONFIG = "c";
+	public static final String CMD_OPT_HEALTHCHECKINTERVAL = "hci";
+	public static final String CMD_OPT_BALANCE = "lb";
+	public static final String CMD_OPT_WARMPOOLAGE = "wpage";
+	public static final String CMD_OPT_WARMPOOLMAX = "wpmax";
+	public static final String CMD_OPT_WARMPOOLMIN = "wpmin";
+	public static final String CMD_OPT_CONNECTSTAGGER = "cst";
+	public static final String CMD_OPT_CONNECTTIMEOUT = "ct";
+	public static final String CMD_OPT_PENDINGQUEUE = "pq";
+	public static final String CMD_OPT_MAXCONNECTIONS = "mc";
+	public static final String CMD_OPT_REUSEPORT = "rup";
+	public static final String CMD_OPT_ACCEPTORS = "ac";
+	public static final String CMD_OPT_POOLMEMORY = "pm";
+	public static final String CMD_OPT_FORWARDMODE = "fm";
+	public static final String CMD_OPT_IOTHREADS = "io";
+	public static final String CMD_OPT_ENGINE = "en";
+	public static final String CMD_OPT_MAXBUFFERSIZE = "bsmax";
+	public static final String CMD_OPT_MINBUFFERSIZE = "bsmin";
 	public static final String CMD_OPT_BUFFERSIZE = "bs";
 	public static final String CMD_OPT_PROXYPASSWORD = "pxpass";
 	public static final String CMD_OPT_PROXYUSER = "pxusr";
@@ -25,6 +66,16 @@ public class CmdLineHandler {
 	public static final String CMD_OPT_REMOTEHOST = "rh";
 	public static final String CMD_OPT_HELP = "h";
 	public static final String CMD_OPT_LOCALPORT = "lp";
+	
+	public static final String ENGINE_THREAD = "thread";
+	public static final String ENGINE_VIRTUAL = "virtual";
+	public static final String ENGINE_NIO = "nio";
+	
+	public static final String FORWARDMODE_COPY = "copy";
+	public static final String FORWARDMODE_CHANNEL = "channel";
+	
+	public static final int DEFAULT_DRAIN_TIMEOUT = 30;
+	
 		
 	private final CommandLine cmdLine;
 	
@@ -101,6 +152,22 @@ public class CmdLineHandler {
 		return this.cmdLine.getOptionValue(option, defaultValue);
 	}
 	
+	/**
+	 * @return values of all options, which can be set per tunnel, by their long name
+	 * @see TunnelConfig#KEYS
+	 */
+	public Properties getTunnelProperties() {
+		final Options options = buildAllCommandLineOptions();
+		final Properties values = new Properties();
+		for (String key : TunnelConfig.KEYS) {
+			final Option option = options.getOption(key);
+			if (option != null && this.cmdLine.hasOption(key)) {
+				values.setProperty(key, option.hasArg() ? this.cmdLine.getOptionValue(key) : "true");
+			}
+		}
+		return values;
+	}
+	
 	
 	private static Options buildAllCommandLineOptions() {
 		final Options options = new Options();
@@ -109,25 +176,69 @@ public class CmdLineHandler {
 			options.addOption(o);
 		}
 		
+		options.addOption(Option.builder(CMD_OPT_CONFIG)
+				                       .longOpt("config")
+				                       .required(false)
+				                       .numberOfArgs(1)
+				                       .optionalArg(false)
+				                       .argName("file")
+				                       .type(String.class)
+				                       .desc("Properties file declaring several tunnels as tunnel.<name>.<option>=<value>, using the long option names (e.g. tunnel.web.localport=8080). Replaces the per tunnel options on the command line, engine and buffer options are shared by all tunnels.")				                
+				                       .build());
+		
+		options.addOption(Option.builder(CMD_OPT_WATCH)
+				                       .longOpt("watch")
+				                       .required(false)
+				                       .numberOfArgs(0)
+				                       .desc("Reload the config file whenever it changes. It is always reloaded on SIGHUP. Established connections are kept, only new ones use the new settings.")				                
+				                       .build());
+		
+		options.addOption(Option.builder(CMD_OPT_DRAINTIMEOUT)
+				                       .longOpt("draintimeout")
+				                       .required(false)
+				                       .numberOfArgs(1)
+				                       .optionalArg(false)
+				                       .argName("seconds")
+				                       .type(Number.class)
+				                       .desc("On shutdown, stop accepting and wait this long for established connections to finish, before dropping them. Defaults to " + DEFAULT_DRAIN_TIMEOUT + ".")				                
+				                       .build());
+		
+		options.addOption(Option.builder(CMD_OPT_METRICSPORT)
+				                       .longOpt("metricsport")
+				                       .required(false)
+				                       .numberOfArgs(1)
+				                       .optionalArg(false)
+				                       .argName("portnumber")
+				                       .type(Number.class)
+				                       .desc("Serve metrics in the Prometheus text format on http://127.0.0.1:<port>/metrics")				                
+				                       .build());
+		
+		options.addOption(Option.builder(CMD_OPT_JMX)
+				                       .longOpt("jmx")
+				                       .required(false)
+				                       .numberOfArgs(0)
+				                       .desc("Register MBeans for every tunnel and connection, to watch them and to pause accepting or close connections at runtime (e.g. with jconsole). Remote access is configured with the com.sun.management.jmxremote properties of the JVM.")				                
+				                       .build());
+		
 		options.addOption(Option.builder(CMD_OPT_LOCALPORT)
 				                       .longOpt("localport")
-				                       .required(true)
+				                       .required(false)
 				                       .numberOfArgs(1)
 				                       .optionalArg(false)
 				                       .argName("portnumber")
 				                       .type(Number.class)
-				                       .desc("Required. Local portnumber to listen on.")				                
+				                       .desc("Required, unless a config file is given. Local portnumber to listen on.")				                
 				                       .build());
 		
 		
 		options.addOption(Option.builder(CMD_OPT_REMOTEHOST)
                 					   .longOpt("remotehost")
-                					   .required(true)
+                					   .required(false)
                 					   .numberOfArgs(1)
                 					   .optionalArg(false)
-                					   .argName("hostname")
+                					   .argName("host[:port],...")
                 					   .type(String.class)
-                					   .desc("Required. Host to redirect the traffic to.")				                
+                					   .desc("Required, unless a config file is given. Host to redirect the traffic to. Several hosts can be given comma separated, connections are then spread across them.")				                
                 					   .build());
 		
 		options.addOption(Option.builder(CMD_OPT_REMOTEPORT)
@@ -140,6 +251,26 @@ public class CmdLineHandler {
                 .desc("Port to redirect the traffic to on the remothost. If not given, the same port as used locally is assumed")				                
                 .build());
 		
+		options.addOption(Option.builder(CMD_OPT_BALANCE)
+                .longOpt("balance")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName(TunnelConfig.BALANCE_ROUNDROBIN + "|" + TunnelConfig.BALANCE_LEASTACTIVE + "|" + TunnelConfig.BALANCE_LATENCY)
+                .type(String.class)
+                .desc("How to choose between several remote hosts. Defaults to " + TunnelConfig.BALANCE_ROUNDROBIN + ".")				                
+                .build());
+		
+		options.addOption(Option.builder(CMD_OPT_HEALTHCHECKINTERVAL)
+                .longOpt("healthcheckinterval")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("ms")
+                .type(Number.class)
+                .desc("With several remote hosts, probe each of them this often, and skip those not reachable. 0 disables the probes. Defaults to " + TunnelConfig.DEFAULT_HEALTHCHECK_INTERVAL + ".")				                
+                .build());
+		
 		options.addOption(Option.builder(CMD_OPT_PROXYHOST)
                 .longOpt("proxyhost")
                 .required(false)
@@ -200,6 +331,275 @@ public class CmdLineHandler {
                 .desc("Size of the buffer in bytes per copyqueue. Used memory is: (buffersize * 2) * connectioncount")				                
                 .build());
 
+		options.addOption(Option.builder(CMD_OPT_MINBUFFERSIZE)
+                .longOpt("minbuffersize")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("size")
+                .type(Number.class)
+                .desc("Lower limit, if the buffer should shrink on quiet connections. Buffersize is then the initial size.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_MAXBUFFERSIZE)
+                .longOpt("maxbuffersize")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("size")
+                .type(Number.class)
+                .desc("Upper limit, if the buffer should grow on busy connections. Buffersize is then the initial size.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_ENGINE)
+                .longOpt("engine")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("type")
+                .type(String.class)
+                .desc("How traffic is copied. '" + ENGINE_THREAD + "' (default) uses two threads per connection, '" + ENGINE_VIRTUAL + "' the same on virtual threads (Java 21+), '" + ENGINE_NIO + "' shares all connections between a few selector threads.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_IOTHREADS)
+                .longOpt("iothreads")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("count")
+                .type(Number.class)
+                .desc("Number of selector threads for engine '" + ENGINE_NIO + "'. Defaults to the number of processors.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_FORWARDMODE)
+                .longOpt("forwardmode")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("mode")
+                .type(String.class)
+                .desc("For thread based engines. '" + FORWARDMODE_COPY + "' (default) copies via the socket streams, '" + FORWARDMODE_CHANNEL + "' between the socket channels using direct buffers. Sockets without a channel fall back to '" + FORWARDMODE_COPY + "'.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_POOLMEMORY)
+                .longOpt("poolmemory")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("megabytes")
+                .type(Number.class)
+                .desc("Maximum of direct memory for pooled buffers, shared by all connections. Defaults to 64. Connections beyond the limit use unpooled heap buffers.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_ACCEPTORS)
+                .longOpt("acceptors")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("count")
+                .type(Number.class)
+                .desc("Number of threads accepting clients. Defaults to 1.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_REUSEPORT)
+                .longOpt("reuseport")
+                .required(false)
+                .numberOfArgs(0)
+                .desc("Give every acceptor its own listener, bound with SO_REUSEPORT. This also lets a new process bind the port while the old one is still running, for restarts without refused connections.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_MAXCONNECTIONS)
+                .longOpt("maxconnections")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("count")
+                .type(Number.class)
+                .desc("Maximum of concurrent connections. Unlimited if not given.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_PENDINGQUEUE)
+                .longOpt("pendingqueue")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("count")
+                .type(Number.class)
+                .desc("Clients waiting for a free connection, when the maximum is reached. Further clients are rejected. Defaults to 0.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_IDLETIMEOUT)
+                .longOpt("idletimeout")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("seconds")
+                .type(Number.class)
+                .desc("Close a connection, if nothing was received in either direction for this long. No timeout if not given.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_WRITETIMEOUT)
+                .longOpt("writetimeout")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("seconds")
+                .type(Number.class)
+                .desc("Close a connection, if its data could not be passed on for this long, because the receiving side does not read. No timeout if not given.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_MAXLIFETIME)
+                .longOpt("maxlifetime")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("seconds")
+                .type(Number.class)
+                .desc("Close a connection this long after it was established, even if it is busy. Unlimited if not given.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_BANDWIDTH)
+                .longOpt("bandwidth")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("kilobytes")
+                .type(Number.class)
+                .desc("Bandwidth of the tunnel in kilobytes per second, shared by all its connections and both directions. A connection exceeding it stops reading for a while. Unlimited if not given.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_CONNECTIONBANDWIDTH)
+                .longOpt("connectionbandwidth")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("kilobytes")
+                .type(Number.class)
+                .desc("Bandwidth of each connection in kilobytes per second, shared by both directions. Unlimited if not given.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_BANDWIDTHBURST)
+                .longOpt("bandwidthburst")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("kilobytes")
+                .type(Number.class)
+                .desc("Data, which may be sent at once after being idle, before the bandwidth limits apply. Defaults to 100ms of the bandwidth, but at least " + (RateLimiter.MIN_DEFAULT_BURST / 1024) + ".")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_GLOBALBANDWIDTH)
+                .longOpt("globalbandwidth")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("kilobytes")
+                .type(Number.class)
+                .desc("Bandwidth of all tunnels together in kilobytes per second. Unlimited if not given.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_BACKLOG)
+                .longOpt("backlog")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("count")
+                .type(Number.class)
+                .desc("Clients the OS queues on the listener, until they are accepted. Defaults to the JVM default (50), the OS may cap it.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_CLIENTSOCKET)
+                .longOpt("clientsocket")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("options")
+                .type(String.class)
+                .desc("Socket options of the accepted clients as comma separated list, e.g. '" + SocketSettings.NODELAY + "," + SocketSettings.KEEPALIVE + "," + SocketSettings.KEEPIDLE + "=60," + SocketSettings.RCVBUF + "=262144'. Known are "
+                	+ SocketSettings.NODELAY + ", " + SocketSettings.KEEPALIVE + ", " + SocketSettings.KEEPIDLE + ", " + SocketSettings.KEEPINTERVAL + ", " + SocketSettings.KEEPCOUNT + " (seconds), "
+                	+ SocketSettings.RCVBUF + ", " + SocketSettings.SNDBUF + " (bytes), " + SocketSettings.LINGER + " (seconds) and " + SocketSettings.TOS + ". Defaults of the OS if not given.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_TARGETSOCKET)
+                .longOpt("targetsocket")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("options")
+                .type(String.class)
+                .desc("Socket options of the connections to the target (or proxy), same format as --clientsocket.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_COALESCEDELAY)
+                .longOpt("coalescedelay")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("micros")
+                .type(Number.class)
+                .desc("Wait up to this long for more data after a read, so small reads of chatty protocols are written together, e.g. 200. Adds up to this much latency. Off if not given. With forward mode 'channel', it needs java 13.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_COALESCEBYTES)
+                .longOpt("coalescebytes")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("bytes")
+                .type(Number.class)
+                .desc("Stop waiting for more data, once this much is gathered. Defaults to the buffer size.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_CONNECTTIMEOUT)
+                .longOpt("connecttimeout")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("millis")
+                .type(Number.class)
+                .desc("Timeout for connecting to the target (or proxy). Defaults to " + TunnelConfig.DEFAULT_BALANCED_CONNECT_TIMEOUT + " with several targets, otherwise to the timeout of the OS. Also limits the CONNECT of a proxy, which otherwise gets " + ProxyTunnelSocketFactory.DEFAULT_HANDSHAKE_TIMEOUT + ".")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_CONNECTSTAGGER)
+                .longOpt("connectstagger")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("millis")
+                .type(Number.class)
+                .desc("If the target resolves to several addresses, start connecting to the next one after this delay. First connected wins. Defaults to " + TargetConnector.DEFAULT_STAGGER_DELAY + ".")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_WARMPOOLMIN)
+                .longOpt("warmpoolmin")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("count")
+                .type(Number.class)
+                .desc("Keep this many connections to the target (through the proxy) ready, before clients arrive. Only for protocols, where the client sends first.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_WARMPOOLMAX)
+                .longOpt("warmpoolmax")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("count")
+                .type(Number.class)
+                .desc("Upper limit of ready connections. Defaults to the minimum.")				                
+                .build());
+
+		options.addOption(Option.builder(CMD_OPT_WARMPOOLAGE)
+                .longOpt("warmpoolage")
+                .required(false)
+                .numberOfArgs(1)
+                .optionalArg(false)
+                .argName("seconds")
+                .type(Number.class)
+                .desc("Ready connections not used within this time are closed. Defaults to " + TunnelConfig.DEFAULT_WARMPOOL_AGE + ".")				                
+                .build());
+
 		return options;
 	}
 	
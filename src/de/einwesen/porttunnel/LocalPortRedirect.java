@@ -1,13 +1,32 @@
 package de.einwesen.porttunnel;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.logging.LogFactory;
 
+import de.einwesen.porttunnel.jmx.JmxExporter;
+import de.einwesen.porttunnel.log.AsyncLogWriter;
 import de.einwesen.porttunnel.log.ConditionalStackLog;
-import de.einwesen.porttunnel.net.ConnectionProcessor;
-import de.einwesen.porttunnel.net.ProxyTunnelSocketFactory;
-import de.einwesen.porttunnel.net.SimpleForwardSocketFactory;
-import de.einwesen.porttunnel.net.TunnelSocketFactory;
+import de.einwesen.porttunnel.log.SimpleSystemOutLog;
+import de.einwesen.porttunnel.metrics.Gauge;
+import de.einwesen.porttunnel.metrics.MetricsRegistry;
+import de.einwesen.porttunnel.metrics.MetricsServer;
+import de.einwesen.porttunnel.net.BufferPool;
+import de.einwesen.porttunnel.net.ChannelTrafficProcessor;
+import de.einwesen.porttunnel.net.RateLimiter;
+import de.einwesen.porttunnel.net.SelectorTrafficEngine;
+import de.einwesen.porttunnel.net.ThreadTrafficEngine;
+import de.einwesen.porttunnel.net.TrafficEngine;
+import de.einwesen.porttunnel.net.TrafficSettings;
 
 /**
  * 
@@ -17,6 +36,9 @@ import de.einwesen.porttunnel.net.TunnelSocketFactory;
 public class LocalPortRedirect {
 	
 	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(LocalPortRedirect.class));
+	
+	/** Time for the final cleanup after draining, before the JVM is allowed to exit anyway **/
+	private static final long SHUTDOWN_GRACE_TIME = 5000;
 		
 	public static void main(String[] args) {
 
@@ -29,38 +51,111 @@ public class LocalPortRedirect {
 				CmdLineHandler.printUsage(LocalPortRedirect.class.getSimpleName());
 			} else {
 					
-				// Getting basic options
-				final int localPort = cmdLine.getRequiredIntegerOptionValue(CmdLineHandler.CMD_OPT_LOCALPORT);
-				final String remoteHost = cmdLine.getOptionValue(CmdLineHandler.CMD_OPT_REMOTEHOST);
-				final int remotePort = cmdLine.getParsedOptionValue(CmdLineHandler.CMD_OPT_REMOTEPORT, localPort);			
+				// Getting the tunnels, either from a config file or from the command line
+				final File configFile = cmdLine.hasOption(CmdLineHandler.CMD_OPT_CONFIG) ? new File(cmdLine.getOptionValue(CmdLineHandler.CMD_OPT_CONFIG)) : null;
+				final List<TunnelConfig> tunnelConfigs;
+				if (configFile != null) {
+					tunnelConfigs = TunnelConfig.load(configFile);
+				} else {
+					tunnelConfigs = Collections.singletonList(new TunnelConfig("default", cmdLine.getTunnelProperties()));
+				}
 				
+				final String engineType = cmdLine.getOptionValue(CmdLineHandler.CMD_OPT_ENGINE, CmdLineHandler.ENGINE_THREAD);
+				final String forwardMode = cmdLine.getOptionValue(CmdLineHandler.CMD_OPT_FORWARDMODE, CmdLineHandler.FORWARDMODE_COPY);
 				
-				TunnelSocketFactory socketFactory = null;				
+				if (!CmdLineHandler.FORWARDMODE_COPY.equals(forwardMode) && !CmdLineHandler.FORWARDMODE_CHANNEL.equals(forwardMode)) {
+					throw new ParseException("Unknown forward mode " + forwardMode);
+				}
+				final boolean channelForwarding = CmdLineHandler.FORWARDMODE_CHANNEL.equals(forwardMode);
+				if (channelForwarding && !CmdLineHandler.ENGINE_NIO.equals(engineType) && !ChannelTrafficProcessor.canCoalesce()) {
+					for (TunnelConfig config : tunnelConfigs) {
+						if (config.getCoalesceDelay() > 0) {
+							LOGGER.warn("Coalescing with channel forwarding needs java 13, it is off for channel based connections on java " + System.getProperty("java.version"));
+							break;
+						}
+					}
+				}
+				
+				final BufferPool bufferPool = new BufferPool(cmdLine.getParsedOptionValue(CmdLineHandler.CMD_OPT_POOLMEMORY, (int)(BufferPool.DEFAULT_MAX_MEMORY / (1024 * 1024))) * 1024L * 1024L);
+				final TrafficSettings trafficSettings = new TrafficSettings(cmdLine.getParsedOptionValue(CmdLineHandler.CMD_OPT_BUFFERSIZE, 
+						CmdLineHandler.ENGINE_NIO.equals(engineType) ? SelectorTrafficEngine.DEFAULT_BUFFER_SIZE : ThreadTrafficEngine.DEFAULT_BUFFER_SIZE));
+				trafficSettings.setMinBufferSize(cmdLine.getParsedOptionValue(CmdLineHandler.CMD_OPT_MINBUFFERSIZE, 0));
+				trafficSettings.setMaxBufferSize(cmdLine.getParsedOptionValue(CmdLineHandler.CMD_OPT_MAXBUFFERSIZE, 0));
 				
-				if (cmdLine.hasOption(CmdLineHandler.CMD_OPT_PROXYHOST)) {
-					socketFactory = new ProxyTunnelSocketFactory(cmdLine.getOptionValue(CmdLineHandler.CMD_OPT_PROXYHOST), 
-																 cmdLine.getRequiredIntegerOptionValue(CmdLineHandler.CMD_OPT_PROXYPORT),
-																 cmdLine.getOptionValue(CmdLineHandler.CMD_OPT_PROXYUSER), 
-																 cmdLine.getOptionValue(CmdLineHandler.CMD_OPT_PROXYPASSWORD));
+				TrafficEngine trafficEngine = null;
+				
+				if (CmdLineHandler.ENGINE_NIO.equals(engineType)) {
+					trafficEngine = new SelectorTrafficEngine(cmdLine.getParsedOptionValue(CmdLineHandler.CMD_OPT_IOTHREADS, Runtime.getRuntime().availableProcessors()),
+															  bufferPool, trafficSettings,
+															  new ThreadTrafficEngine(channelForwarding, bufferPool, trafficSettings));
+				} else if (CmdLineHandler.ENGINE_THREAD.equals(engineType)) {
+					trafficEngine = new ThreadTrafficEngine(channelForwarding, bufferPool, trafficSettings);
+				} else if (CmdLineHandler.ENGINE_VIRTUAL.equals(engineType)) {
+					trafficEngine = ThreadTrafficEngine.withVirtualThreads(channelForwarding, bufferPool, trafficSettings);
 				} else {
-					socketFactory = new SimpleForwardSocketFactory();
+					throw new ParseException("Unknown engine " + engineType);
 				}
 				
-				// For the time being, we do not need different threads, since we are listening on a single port
-				final ConnectionProcessor connectionProcessor = new ConnectionProcessor(localPort, remoteHost, remotePort, socketFactory);
+				// All tunnels share the engine, and with it the I/O threads and buffers
+				final MetricsRegistry metricsRegistry = new MetricsRegistry();
+				registerBufferPoolMetrics(metricsRegistry, bufferPool);
+				registerProcessMetrics(metricsRegistry);
+				final TunnelManager tunnelManager = new TunnelManager(trafficEngine, configFile, metricsRegistry);
+				if (cmdLine.hasOption(CmdLineHandler.CMD_OPT_JMX)) {
+					tunnelManager.setJmxExporter(new JmxExporter());
+				}
+				if (cmdLine.hasOption(CmdLineHandler.CMD_OPT_GLOBALBANDWIDTH)) {
+					tunnelManager.setGlobalRateLimiter(new RateLimiter(null, cmdLine.getRequiredIntegerOptionValue(CmdLineHandler.CMD_OPT_GLOBALBANDWIDTH) * 1024L,
+																	   cmdLine.getParsedOptionValue(CmdLineHandler.CMD_OPT_BANDWIDTHBURST, 0) * 1024L));
+				}
+				
+				MetricsServer metricsServer = null;
+				if (cmdLine.hasOption(CmdLineHandler.CMD_OPT_METRICSPORT)) {
+					metricsServer = new MetricsServer(cmdLine.getRequiredIntegerOptionValue(CmdLineHandler.CMD_OPT_METRICSPORT), metricsRegistry);
+					metricsServer.start();
+				}
+				
+				final long drainTimeout = cmdLine.getParsedOptionValue(CmdLineHandler.CMD_OPT_DRAINTIMEOUT, CmdLineHandler.DEFAULT_DRAIN_TIMEOUT) * 1000L;
+				final CountDownLatch exited = new CountDownLatch(1);
 				
-				// Define cleanup 
-				Runtime.getRuntime().addShutdownHook(new Thread(){
+				// Define cleanup: Stop accepting, and keep the JVM alive while main drains the connections
+				Runtime.getRuntime().addShutdownHook(new Thread("Shutdown"){
 					@Override
-					public synchronized void start() {
-						connectionProcessor.stopRunning();
+					public void run() {
+						tunnelManager.shutdown();
+						try {
+							exited.await(drainTimeout + SHUTDOWN_GRACE_TIME, TimeUnit.MILLISECONDS);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
 					}					
 				});
 				
-				// Let's go!
-				connectionProcessor.run();
-				
-				LOGGER.info("EXIT");
+				try {
+					// Let's go!
+					tunnelManager.apply(tunnelConfigs);
+					if (configFile != null) {
+						tunnelManager.enableSignalReload();
+						if (cmdLine.hasOption(CmdLineHandler.CMD_OPT_WATCH)) {
+							tunnelManager.startWatching();
+						}
+					}
+					
+					tunnelManager.awaitShutdown();
+					tunnelManager.drain(drainTimeout);
+					trafficEngine.shutdown();
+					
+					tunnelManager.logStats();
+					LOGGER.info("Buffer pool: " + bufferPool.getStatsString());
+					LOGGER.info("EXIT");
+				} finally {
+					if (metricsServer != null) {
+						metricsServer.stop();
+					}
+					// Logging is asynchronous, and the JVM exits as soon as we are done
+					SimpleSystemOutLog.flush();
+					exited.countDown();
+				}
 			
 			}
 
@@ -74,4 +169,72 @@ public class LocalPortRedirect {
 		
 	}
 
+	private static void registerProcessMetrics(MetricsRegistry registry) {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		registry.register("jvm_threads", "Live threads", false, new Gauge() {
+			@Override
+			public long getValue() {
+				return threads.getThreadCount();
+			}
+		});
+		registry.register("jvm_threads_peak", "Most live threads at the same time", false, new Gauge() {
+			@Override
+			public long getValue() {
+				return threads.getPeakThreadCount();
+			}
+		});
+		registry.register("jvm_heap_used_bytes", "Used heap memory", false, new Gauge() {
+			@Override
+			public long getValue() {
+				return memory.getHeapMemoryUsage().getUsed();
+			}
+		});
+
+		registry.register("log_lines_dropped_total", "Log lines dropped, because logging could not keep up", true, new Gauge() {
+			@Override
+			public long getValue() {
+				return AsyncLogWriter.getInstance().getDroppedLines();
+			}
+		});
+
+		// Only known on unix like platforms
+		final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+			registry.register("process_open_fds", "Open file descriptors, including sockets", false, new Gauge() {
+				@Override
+				public long getValue() {
+					return ((com.sun.management.UnixOperatingSystemMXBean)os).getOpenFileDescriptorCount();
+				}
+			});
+		}
+	}
+
+	private static void registerBufferPoolMetrics(MetricsRegistry registry, final BufferPool bufferPool) {
+		registry.register("bufferpool_hits_total", "Buffers served from the pool", true, new Gauge() {
+			@Override
+			public long getValue() {
+				return bufferPool.getHits();
+			}
+		});
+		registry.register("bufferpool_misses_total", "Buffers newly allocated by the pool", true, new Gauge() {
+			@Override
+			public long getValue() {
+				return bufferPool.getMisses();
+			}
+		});
+		registry.register("bufferpool_overflows_total", "Buffers allocated on the heap, because the pool was exhausted", true, new Gauge() {
+			@Override
+			public long getValue() {
+				return bufferPool.getOverflows();
+			}
+		});
+		registry.register("bufferpool_allocated_bytes", "Direct memory held by the pool", false, new Gauge() {
+			@Override
+			public long getValue() {
+				return bufferPool.getAllocatedMemory();
+			}
+		});
+	}
+
 }
@@ -0,0 +1,263 @@
+package de.einwesen.porttunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+import de.einwesen.porttunnel.metrics.TunnelMetrics;
+import de.einwesen.porttunnel.net.Backend;
+import de.einwesen.porttunnel.net.BackendPool;
+import de.einwesen.porttunnel.net.ConnectionProcessor;
+import de.einwesen.porttunnel.net.ProxyTunnelSocketFactory;
+import de.einwesen.porttunnel.net.RateLimiter;
+import de.einwesen.porttunnel.net.SimpleForwardSocketFactory;
+import de.einwesen.porttunnel.net.TargetConnector;
+import de.einwesen.porttunnel.net.TrafficEngine;
+import de.einwesen.porttunnel.net.TunnelSocketFactory;
+import de.einwesen.porttunnel.net.WarmPoolSocketFactory;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * One local port, forwarded as described by a {@link TunnelConfig}. Owns the
+ * socket factory and backends of the tunnel, the {@link TrafficEngine} is
+ * shared with all other tunnels.
+ *
+ * The targets can be replaced while running, see {@link #retarget(TunnelConfig)}.
+ */
+public class Tunnel {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(Tunnel.class));
+
+	/**
+	 * Everything needed to connect to the targets of a tunnel
+	 */
+	private static final class Targets {
+		private final BackendPool backendPool;
+		private final TunnelSocketFactory probeFactory;
+		private final WarmPoolSocketFactory warmPool;
+		private final TunnelSocketFactory socketFactory;
+
+		Targets(TunnelConfig config) {
+			final List<Backend> backends = new ArrayList<Backend>();
+			for (InetSocketAddress target : config.getTargets()) {
+				backends.add(new Backend(target.getHostString(), target.getPort()));
+			}
+			this.backendPool = new BackendPool(backends, config.getBalanceStrategy());
+
+			final TunnelSocketFactory connectFactory = createFactory(config, config.getConnectTimeout());
+			// A probe must not hang longer than the interval, or a blackholed backend would stay healthy
+			final int interval = config.getHealthCheckInterval();
+			this.probeFactory = createFactory(config, Math.min(interval, config.getConnectTimeout() > 0 ? config.getConnectTimeout() : interval));
+
+			if (config.getWarmPoolMin() > 0) {
+				this.warmPool = new WarmPoolSocketFactory(connectFactory, config.getWarmPoolMin(), config.getWarmPoolMax(), config.getWarmPoolAge() * 1000L);
+				this.socketFactory = this.warmPool;
+			} else {
+				this.warmPool = null;
+				this.socketFactory = connectFactory;
+			}
+		}
+
+		private static TunnelSocketFactory createFactory(TunnelConfig config, int connectTimeout) {
+			final TargetConnector connector = new TargetConnector(connectTimeout, config.getConnectStagger(), config.getTargetSocketSettings());
+			if (config.getProxyHost() != null) {
+				return new ProxyTunnelSocketFactory(config.getProxyHost(), config.getProxyPort(),
+													config.getProxyUser(), config.getProxyPassword(), connector);
+			} else {
+				return new SimpleForwardSocketFactory(connector);
+			}
+		}
+
+		void start(TunnelConfig config) {
+			if (backendPool.size() > 1) {
+				backendPool.startHealthChecks(probeFactory, config.getHealthCheckInterval());
+			}
+			if (warmPool != null) {
+				for (Backend backend : backendPool.getBackends()) {
+					warmPool.warmUp(backend.getHost(), backend.getPort());
+				}
+			}
+		}
+
+		void stop() {
+			backendPool.stopHealthChecks();
+			if (warmPool != null) {
+				warmPool.close();
+			}
+		}
+	}
+
+	private volatile TunnelConfig config;
+	private volatile Targets targets;
+	private final ConnectionProcessor connectionProcessor;
+	private Thread thread = null;
+
+	/**
+	 * @param config
+	 * @param trafficEngine shared by all tunnels
+	 * @param metrics counters of this tunnel
+	 * @param globalRateLimiter bandwidth shared by all tunnels, null if unlimited
+	 */
+	public Tunnel(TunnelConfig config, TrafficEngine trafficEngine, TunnelMetrics metrics, RateLimiter globalRateLimiter) {
+		this.config = config;
+		this.targets = new Targets(config);
+
+		this.connectionProcessor = new ConnectionProcessor(config.getLocalPort(), targets.backendPool, targets.socketFactory, trafficEngine);
+		this.connectionProcessor.setAcceptorCount(config.getAcceptors());
+		this.connectionProcessor.setReusePort(config.isReusePort());
+		this.connectionProcessor.setMaxConnections(config.getMaxConnections());
+		this.connectionProcessor.setPendingQueueSize(config.getPendingQueue());
+		this.connectionProcessor.setBacklog(config.getBacklog());
+		this.connectionProcessor.setClientSocketSettings(config.getClientSocketSettings());
+		this.connectionProcessor.setMetrics(metrics);
+		this.connectionProcessor.setRateLimiter(new RateLimiter(globalRateLimiter));
+		applyLimits(config);
+	}
+
+	private void applyLimits(TunnelConfig config) {
+		final long burst = config.getBandwidthBurst() * 1024L;
+		connectionProcessor.getRateLimiter().setRate(config.getBandwidth() * 1024L, burst);
+		connectionProcessor.setConnectionRate(config.getConnectionBandwidth() * 1024L, burst);
+		connectionProcessor.setTimeouts(config.getIdleTimeout() * 1000L, config.getWriteTimeout() * 1000L, config.getMaxLifetime() * 1000L);
+		connectionProcessor.setCoalescing(TimeUnit.MICROSECONDS.toNanos(config.getCoalesceDelay()), config.getCoalesceBytes());
+	}
+
+	/**
+	 * Start accepting in a thread of its own. The port is bound before, so the
+	 * caller learns if it is not available.
+	 *
+	 * @throws IOException if the local port can not be bound. The tunnel is unusable then.
+	 */
+	public synchronized void start() throws IOException {
+		if (thread != null) {
+			return;
+		}
+
+		try {
+			connectionProcessor.bind();
+		} catch (IOException e) {
+			// Releases the warm pool
+			targets.stop();
+			throw e;
+		}
+		targets.start(config);
+		thread = new Thread(connectionProcessor, "Tunnel-" + config.getName());
+		thread.start();
+	}
+
+	/**
+	 * Stop accepting, and release the resources of the tunnel. Connections already
+	 * established are handled by the engine, and are not affected.
+	 */
+	public synchronized void stop() {
+		connectionProcessor.stopRunning();
+		targets.stop();
+	}
+
+	/**
+	 * @param newConfig
+	 * @return true if the listener is the same for both configs, so {@link #retarget(TunnelConfig)} can be used
+	 */
+	public boolean canRetarget(TunnelConfig newConfig) {
+		final TunnelConfig current = this.config;
+		return current.getLocalPort() == newConfig.getLocalPort()
+			&& current.getAcceptors() == newConfig.getAcceptors()
+			&& current.isReusePort() == newConfig.isReusePort()
+			&& current.getMaxConnections() == newConfig.getMaxConnections()
+			&& current.getPendingQueue() == newConfig.getPendingQueue()
+			&& current.getBacklog() == newConfig.getBacklog()
+			&& current.getClientSocketSettings().toString().equals(newConfig.getClientSocketSettings().toString());
+	}
+
+	/**
+	 * Send new connections to the targets of <i>newConfig</i>, without closing
+	 * the listener. Established connections stay with their old target, but
+	 * a new bandwidth of the tunnel applies to them as well.
+	 *
+	 * @param newConfig must satisfy {@link #canRetarget(TunnelConfig)}
+	 */
+	public synchronized void retarget(TunnelConfig newConfig) {
+		if (!canRetarget(newConfig)) {
+			throw new IllegalArgumentException("Listener of tunnel " + newConfig.getName() + " changed, it has to be restarted");
+		}
+
+		final Targets oldTargets = this.targets;
+		final Targets newTargets = new Targets(newConfig);
+		if (thread != null) {
+			newTargets.start(newConfig);
+		}
+
+		this.connectionProcessor.setTarget(newTargets.backendPool, newTargets.socketFactory);
+		applyLimits(newConfig);
+		this.targets = newTargets;
+		this.config = newConfig;
+
+		oldTargets.stop();
+	}
+
+	/**
+	 * Wait until the tunnel stopped accepting
+	 *
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		final Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t != null) {
+			t.join();
+		}
+	}
+
+	/**
+	 * Wait for the established connections to end, after {@link #stop()}
+	 *
+	 * @param timeout in ms
+	 * @return true if none is left
+	 * @throws InterruptedException
+	 */
+	public boolean awaitIdle(long timeout) throws InterruptedException {
+		return connectionProcessor.awaitIdle(timeout);
+	}
+
+	public void logStats() {
+		final String prefix = "[" + config.getName() + "] ";
+		final Targets current = this.targets;
+		if (current.backendPool.size() > 1) {
+			for (Backend backend : current.backendPool.getBackends()) {
+				LOGGER.info(prefix + "Backend " + backend.getStatsString());
+			}
+		}
+		if (current.warmPool != null) {
+			LOGGER.info(prefix + "Warm pool: " + current.warmPool.getStatsString());
+		}
+		if (connectionProcessor.getRejectedConnections() > 0) {
+			LOGGER.info(prefix + "Rejected connections: " + connectionProcessor.getRejectedConnections());
+		}
+	}
+
+	public TunnelConfig getConfig() {
+		return config;
+	}
+
+	public String getName() {
+		return config.getName();
+	}
+
+	public ConnectionProcessor getConnectionProcessor() {
+		return connectionProcessor;
+	}
+
+	public BackendPool getBackendPool() {
+		return targets.backendPool;
+	}
+
+}
@@ -0,0 +1,487 @@
+package de.einwesen.porttunnel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.cli.ParseException;
+
+import de.einwesen.porttunnel.net.BackendPool;
+import de.einwesen.porttunnel.net.SocketSettings;
+import de.einwesen.porttunnel.net.TargetConnector;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Settings of a single tunnel. They either come from the command line, or
+ * from a config file declaring several tunnels as
+ *
+ * <pre>
+ * tunnel.&lt;name&gt;.&lt;key&gt;=&lt;value&gt;
+ * </pre>
+ *
+ * The keys are the long names of the command line options, e.g.
+ * <i>tunnel.web.localport=8080</i>. Settings shared by all tunnels
+ * (engine, buffers) are only taken from the command line.
+ */
+public class TunnelConfig {
+
+	public static final String KEY_PREFIX = "tunnel.";
+
+	public static final String KEY_LOCALPORT = "localport";
+	public static final String KEY_REMOTEHOST = "remotehost";
+	public static final String KEY_REMOTEPORT = "remoteport";
+	public static final String KEY_BALANCE = "balance";
+	public static final String KEY_HEALTHCHECKINTERVAL = "healthcheckinterval";
+	public static final String KEY_PROXYHOST = "proxyhost";
+	public static final String KEY_PROXYPORT = "proxyport";
+	public static final String KEY_PROXYUSER = "proxyuser";
+	public static final String KEY_PROXYPASSWORD = "proxypassword";
+	public static final String KEY_CONNECTTIMEOUT = "connecttimeout";
+	public static final String KEY_CONNECTSTAGGER = "connectstagger";
+	public static final String KEY_WARMPOOLMIN = "warmpoolmin";
+	public static final String KEY_WARMPOOLMAX = "warmpoolmax";
+	public static final String KEY_WARMPOOLAGE = "warmpoolage";
+	public static final String KEY_ACCEPTORS = "acceptors";
+	public static final String KEY_REUSEPORT = "reuseport";
+	public static final String KEY_MAXCONNECTIONS = "maxconnections";
+	public static final String KEY_PENDINGQUEUE = "pendingqueue";
+	public static final String KEY_BANDWIDTH = "bandwidth";
+	public static final String KEY_CONNECTIONBANDWIDTH = "connectionbandwidth";
+	public static final String KEY_BANDWIDTHBURST = "bandwidthburst";
+	public static final String KEY_IDLETIMEOUT = "idletimeout";
+	public static final String KEY_WRITETIMEOUT = "writetimeout";
+	public static final String KEY_MAXLIFETIME = "maxlifetime";
+	public static final String KEY_BACKLOG = "backlog";
+	public static final String KEY_CLIENTSOCKET = "clientsocket";
+	public static final String KEY_TARGETSOCKET = "targetsocket";
+	public static final String KEY_COALESCEDELAY = "coalescedelay";
+	public static final String KEY_COALESCEBYTES = "coalescebytes";
+
+	/** All keys, which can be set per tunnel **/
+	public static final List<String> KEYS = Collections.unmodifiableList(Arrays.asList(
+			KEY_LOCALPORT, KEY_REMOTEHOST, KEY_REMOTEPORT, KEY_BALANCE, KEY_HEALTHCHECKINTERVAL,
+			KEY_PROXYHOST, KEY_PROXYPORT, KEY_PROXYUSER, KEY_PROXYPASSWORD,
+			KEY_CONNECTTIMEOUT, KEY_CONNECTSTAGGER, KEY_WARMPOOLMIN, KEY_WARMPOOLMAX, KEY_WARMPOOLAGE,
+			KEY_ACCEPTORS, KEY_REUSEPORT, KEY_MAXCONNECTIONS, KEY_PENDINGQUEUE,
+			KEY_BANDWIDTH, KEY_CONNECTIONBANDWIDTH, KEY_BANDWIDTHBURST,
+			KEY_IDLETIMEOUT, KEY_WRITETIMEOUT, KEY_MAXLIFETIME,
+			KEY_BACKLOG, KEY_CLIENTSOCKET, KEY_TARGETSOCKET,
+			KEY_COALESCEDELAY, KEY_COALESCEBYTES));
+
+	public static final String BALANCE_ROUNDROBIN = "roundrobin";
+	public static final String BALANCE_LEASTACTIVE = "leastactive";
+	public static final String BALANCE_LATENCY = "latency";
+
+	public static final int DEFAULT_WARMPOOL_AGE = 30;
+	public static final int DEFAULT_HEALTHCHECK_INTERVAL = 2000;
+	/** With several targets, so a dead one is ejected within seconds **/
+	public static final int DEFAULT_BALANCED_CONNECT_TIMEOUT = 3000;
+
+	private final String name;
+	private final Properties values;
+
+	private final int localPort;
+	private final List<InetSocketAddress> targets;
+	private final BackendPool.Strategy balanceStrategy;
+	private final int healthCheckInterval;
+	private final String proxyHost;
+	private final int proxyPort;
+	private final String proxyUser;
+	private final String proxyPassword;
+	private final int connectTimeout;
+	private final int connectStagger;
+	private final int warmPoolMin;
+	private final int warmPoolMax;
+	private final int warmPoolAge;
+	private final int acceptors;
+	private final boolean reusePort;
+	private final int maxConnections;
+	private final int pendingQueue;
+	private final int bandwidth;
+	private final int connectionBandwidth;
+	private final int bandwidthBurst;
+	private final int idleTimeout;
+	private final int writeTimeout;
+	private final int maxLifetime;
+	private final int backlog;
+	private final SocketSettings clientSocketSettings;
+	private final SocketSettings targetSocketSettings;
+	private final int coalesceDelay;
+	private final int coalesceBytes;
+
+	/**
+	 * @param name of the tunnel, used in error messages
+	 * @param values by the keys in {@link #KEYS}
+	 * @throws ParseException if a value is missing or invalid
+	 */
+	public TunnelConfig(String name, Properties values) throws ParseException {
+		this.name = name;
+		this.values = new Properties();
+		this.values.putAll(values);
+
+		this.localPort = getRequiredInt(KEY_LOCALPORT);
+		this.targets = parseTargets(getRequiredString(KEY_REMOTEHOST), getInt(KEY_REMOTEPORT, this.localPort));
+		this.balanceStrategy = parseStrategy(getString(KEY_BALANCE, BALANCE_ROUNDROBIN));
+		this.healthCheckInterval = getInt(KEY_HEALTHCHECKINTERVAL, DEFAULT_HEALTHCHECK_INTERVAL);
+
+		this.proxyHost = getString(KEY_PROXYHOST, null);
+		this.proxyPort = this.proxyHost != null ? getRequiredInt(KEY_PROXYPORT) : 0;
+		this.proxyUser = getString(KEY_PROXYUSER, null);
+		this.proxyPassword = getString(KEY_PROXYPASSWORD, null);
+
+		this.connectTimeout = getInt(KEY_CONNECTTIMEOUT, this.targets.size() > 1 ? DEFAULT_BALANCED_CONNECT_TIMEOUT : 0);
+		this.connectStagger = getInt(KEY_CONNECTSTAGGER, TargetConnector.DEFAULT_STAGGER_DELAY);
+
+		this.warmPoolMin = getInt(KEY_WARMPOOLMIN, 0);
+		this.warmPoolMax = getInt(KEY_WARMPOOLMAX, this.warmPoolMin);
+		this.warmPoolAge = getInt(KEY_WARMPOOLAGE, DEFAULT_WARMPOOL_AGE);
+
+		this.acceptors = getInt(KEY_ACCEPTORS, 1);
+		this.reusePort = Boolean.parseBoolean(getString(KEY_REUSEPORT, "false"));
+		this.maxConnections = getInt(KEY_MAXCONNECTIONS, 0);
+		this.pendingQueue = getInt(KEY_PENDINGQUEUE, 0);
+
+		this.bandwidth = getInt(KEY_BANDWIDTH, 0);
+		this.connectionBandwidth = getInt(KEY_CONNECTIONBANDWIDTH, 0);
+		this.bandwidthBurst = getInt(KEY_BANDWIDTHBURST, 0);
+
+		this.idleTimeout = getInt(KEY_IDLETIMEOUT, 0);
+		this.writeTimeout = getInt(KEY_WRITETIMEOUT, 0);
+		this.maxLifetime = getInt(KEY_MAXLIFETIME, 0);
+
+		this.backlog = getInt(KEY_BACKLOG, 0);
+		this.clientSocketSettings = parseSocketSettings(KEY_CLIENTSOCKET);
+		this.targetSocketSettings = parseSocketSettings(KEY_TARGETSOCKET);
+
+		this.coalesceDelay = getInt(KEY_COALESCEDELAY, 0);
+		this.coalesceBytes = getInt(KEY_COALESCEBYTES, 0);
+	}
+
+	/**
+	 * Reads all tunnels from a config file
+	 *
+	 * @param file
+	 * @return tunnels sorted by name
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public static List<TunnelConfig> load(File file) throws IOException, ParseException {
+		final Properties fileValues = new Properties();
+		final InputStream in = new FileInputStream(file);
+		try {
+			fileValues.load(in);
+		} finally {
+			in.close();
+		}
+
+		final Map<String, Properties> tunnelValues = new TreeMap<String, Properties>();
+		for (String key : fileValues.stringPropertyNames()) {
+			final int keySeparator = key.lastIndexOf('.');
+			if (!key.startsWith(KEY_PREFIX) || keySeparator <= KEY_PREFIX.length()) {
+				throw new ParseException("Invalid key in " + file + " [" + key + "], expected " + KEY_PREFIX + "<name>.<key>");
+			}
+
+			final String tunnelName = key.substring(KEY_PREFIX.length(), keySeparator);
+			final String tunnelKey = key.substring(keySeparator + 1);
+			if (!KEYS.contains(tunnelKey)) {
+				throw new ParseException("Unknown key in " + file + " [" + key + "]");
+			}
+
+			Properties values = tunnelValues.get(tunnelName);
+			if (values == null) {
+				values = new Properties();
+				tunnelValues.put(tunnelName, values);
+			}
+			values.setProperty(tunnelKey, fileValues.getProperty(key).trim());
+		}
+
+		if (tunnelValues.isEmpty()) {
+			throw new ParseException("No tunnels defined in " + file);
+		}
+
+		final List<TunnelConfig> configs = new ArrayList<TunnelConfig>(tunnelValues.size());
+		for (Map.Entry<String, Properties> entry : tunnelValues.entrySet()) {
+			configs.add(new TunnelConfig(entry.getKey(), entry.getValue()));
+		}
+		return configs;
+	}
+
+	/**
+	 * Parses a comma separated list of host[:port]. IPv6 addresses with a port
+	 * have to be written in brackets.
+	 *
+	 * @param list
+	 * @param defaultPort used if an entry has no port
+	 * @return unresolved addresses
+	 * @throws ParseException
+	 */
+	private List<InetSocketAddress> parseTargets(String list, int defaultPort) throws ParseException {
+		final List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+		for (String entry : list.split(",")) {
+			entry = entry.trim();
+			if (entry.isEmpty()) {
+				continue;
+			}
+
+			String host = entry;
+			int port = defaultPort;
+			final int portSeparator = entry.lastIndexOf(':');
+			// A single colon, or one after a bracketed IPv6 address
+			if (portSeparator > 0 && (entry.indexOf(':') == portSeparator || entry.charAt(portSeparator - 1) == ']')) {
+				host = entry.substring(0, portSeparator);
+				port = parseInt(KEY_REMOTEHOST, entry.substring(portSeparator + 1));
+			}
+			if (host.startsWith("[") && host.endsWith("]")) {
+				host = host.substring(1, host.length() - 1);
+			}
+			result.add(InetSocketAddress.createUnresolved(host, port));
+		}
+
+		if (result.isEmpty()) {
+			throw new ParseException(describe(KEY_REMOTEHOST) + " has no host");
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	private BackendPool.Strategy parseStrategy(String value) throws ParseException {
+		if (BALANCE_ROUNDROBIN.equals(value)) {
+			return BackendPool.Strategy.ROUND_ROBIN;
+		} else if (BALANCE_LEASTACTIVE.equals(value)) {
+			return BackendPool.Strategy.LEAST_ACTIVE;
+		} else if (BALANCE_LATENCY.equals(value)) {
+			return BackendPool.Strategy.LATENCY;
+		}
+		throw new ParseException(describe(KEY_BALANCE) + ": Unknown balancing strategy " + value);
+	}
+
+	private SocketSettings parseSocketSettings(String key) throws ParseException {
+		try {
+			return SocketSettings.parse(getString(key, null));
+		} catch (IllegalArgumentException e) {
+			throw new ParseException(describe(key) + ": " + e.getMessage());
+		}
+	}
+
+	private String getString(String key, String defaultValue) {
+		final String value = values.getProperty(key);
+		return value != null && !value.isEmpty() ? value : defaultValue;
+	}
+
+	private String getRequiredString(String key) throws ParseException {
+		final String value = getString(key, null);
+		if (value == null) {
+			throw new ParseException(describe(key) + " is required");
+		}
+		return value;
+	}
+
+	private int getInt(String key, int defaultValue) throws ParseException {
+		final String value = getString(key, null);
+		return value != null ? parseInt(key, value) : defaultValue;
+	}
+
+	private int getRequiredInt(String key) throws ParseException {
+		return parseInt(key, getRequiredString(key));
+	}
+
+	private int parseInt(String key, String value) throws ParseException {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ParseException(describe(key) + ": Not a number [" + value + "]");
+		}
+	}
+
+	private String describe(String key) {
+		return "Tunnel " + name + ", " + key;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	/**
+	 * @return targets as unresolved addresses
+	 */
+	public List<InetSocketAddress> getTargets() {
+		return targets;
+	}
+
+	public BackendPool.Strategy getBalanceStrategy() {
+		return balanceStrategy;
+	}
+
+	public int getHealthCheckInterval() {
+		return healthCheckInterval;
+	}
+
+	/**
+	 * @return null if no proxy is used
+	 */
+	public String getProxyHost() {
+		return proxyHost;
+	}
+
+	public int getProxyPort() {
+		return proxyPort;
+	}
+
+	public String getProxyUser() {
+		return proxyUser;
+	}
+
+	public String getProxyPassword() {
+		return proxyPassword;
+	}
+
+	/**
+	 * @return in ms, 0 for the OS default
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getConnectStagger() {
+		return connectStagger;
+	}
+
+	/**
+	 * @return 0 if no warm pool is used
+	 */
+	public int getWarmPoolMin() {
+		return warmPoolMin;
+	}
+
+	public int getWarmPoolMax() {
+		return warmPoolMax;
+	}
+
+	/**
+	 * @return in seconds
+	 */
+	public int getWarmPoolAge() {
+		return warmPoolAge;
+	}
+
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	public boolean isReusePort() {
+		return reusePort;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public int getPendingQueue() {
+		return pendingQueue;
+	}
+
+	/**
+	 * @return of the whole tunnel in kilobytes per second, 0 if unlimited
+	 */
+	public int getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * @return of each connection in kilobytes per second, 0 if unlimited
+	 */
+	public int getConnectionBandwidth() {
+		return connectionBandwidth;
+	}
+
+	/**
+	 * @return in kilobytes, 0 for the default
+	 */
+	public int getBandwidthBurst() {
+		return bandwidthBurst;
+	}
+
+	/**
+	 * @return in seconds, 0 if none
+	 */
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @return in seconds, 0 if none
+	 */
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * @return in seconds, 0 if none
+	 */
+	public int getMaxLifetime() {
+		return maxLifetime;
+	}
+
+	/**
+	 * @return of the listener, 0 for the default
+	 */
+	public int getBacklog() {
+		return backlog;
+	}
+
+	public SocketSettings getClientSocketSettings() {
+		return clientSocketSettings;
+	}
+
+	public SocketSettings getTargetSocketSettings() {
+		return targetSocketSettings;
+	}
+
+	/**
+	 * @return in microseconds, 0 if reads are written at once
+	 */
+	public int getCoalesceDelay() {
+		return coalesceDelay;
+	}
+
+	/**
+	 * @return bytes to write at once, while coalescing, 0 for a full buffer
+	 */
+	public int getCoalesceBytes() {
+		return coalesceBytes;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof TunnelConfig)) {
+			return false;
+		}
+		final TunnelConfig other = (TunnelConfig)obj;
+		return name.equals(other.name) && values.equals(other.values);
+	}
+
+	@Override
+	public int hashCode() {
+		return name.hashCode() * 31 + values.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
@@ -0,0 +1,391 @@
+package de.einwesen.porttunnel;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.jmx.JmxExporter;
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+import de.einwesen.porttunnel.log.ConditionalStackLog.STACK_LOGLEVEL;
+import de.einwesen.porttunnel.metrics.MetricsRegistry;
+import de.einwesen.porttunnel.net.RateLimiter;
+import de.einwesen.porttunnel.net.TrafficEngine;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Runs all tunnels of the process, and applies changes of the configuration
+ * while running. Tunnels are matched by name:
+ *
+ * New ones are started, removed ones stop accepting. If only the targets of a
+ * tunnel changed, new connections are sent to the new targets while the
+ * listener stays open. Otherwise the tunnel is restarted.
+ *
+ * In all cases established connections are left alone, they are owned by the
+ * shared {@link TrafficEngine} and keep running on their old target.
+ *
+ * A reload is triggered by SIGHUP, or by changes to the config file if watched.
+ *
+ * On {@link #shutdown()} all tunnels stop accepting, and {@link #drain(long)}
+ * waits for the established connections to finish.
+ */
+public class TunnelManager {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(TunnelManager.class));
+
+	/** Editors often write a file in several steps, so wait for them to finish **/
+	private static final long WATCH_SETTLE_TIME = 500;
+
+	private final TrafficEngine trafficEngine;
+	private final File configFile;
+	private final MetricsRegistry metricsRegistry;
+
+	private final Map<String, Tunnel> tunnels = new LinkedHashMap<String, Tunnel>();
+	/** Stopped by a reload, but connections may still be running **/
+	private final List<Tunnel> retiredTunnels = new ArrayList<Tunnel>();
+	private final CountDownLatch shutdownLatch = new CountDownLatch(1);
+	private volatile boolean isShutdown = false;
+	private WatchService watchService = null;
+	private JmxExporter jmxExporter = null;
+	private RateLimiter globalRateLimiter = null;
+
+	/**
+	 * @param trafficEngine shared by all tunnels
+	 * @param configFile to reload from, or null if the tunnels can not be reloaded
+	 * @param metricsRegistry shared by all tunnels
+	 */
+	public TunnelManager(TrafficEngine trafficEngine, File configFile, MetricsRegistry metricsRegistry) {
+		this.trafficEngine = trafficEngine;
+		this.configFile = configFile;
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	/**
+	 * Must be set before the first {@link #apply(List)}
+	 *
+	 * @param jmxExporter registers the tunnels as MBeans, null for none
+	 */
+	public void setJmxExporter(JmxExporter jmxExporter) {
+		this.jmxExporter = jmxExporter;
+	}
+
+	/**
+	 * Must be set before the first {@link #apply(List)}
+	 *
+	 * @param globalRateLimiter bandwidth shared by all tunnels, null if unlimited
+	 */
+	public void setGlobalRateLimiter(RateLimiter globalRateLimiter) {
+		this.globalRateLimiter = globalRateLimiter;
+	}
+
+	/**
+	 * Make the running tunnels match <i>configs</i>
+	 *
+	 * @param configs
+	 */
+	public synchronized void apply(List<TunnelConfig> configs) {
+		if (isShutdown) {
+			return;
+		}
+
+		final Iterator<Tunnel> retired = retiredTunnels.iterator();
+		while (retired.hasNext()) {
+			if (retired.next().getConnectionProcessor().getActiveConnections() <= 0) {
+				retired.remove();
+			}
+		}
+
+		final Set<String> names = new HashSet<String>();
+		int started = 0;
+		int retargeted = 0;
+		int restarted = 0;
+		int removed = 0;
+		int failed = 0;
+
+		for (TunnelConfig config : configs) {
+			names.add(config.getName());
+			final Tunnel current = tunnels.get(config.getName());
+
+			if (current == null) {
+				if (startTunnel(config)) {
+					started++;
+				} else {
+					failed++;
+				}
+			} else if (!current.getConfig().equals(config)) {
+				if (current.canRetarget(config)) {
+					LOGGER.info("Tunnel " + config.getName() + ": Retargeting");
+					current.retarget(config);
+					retargeted++;
+				} else {
+					LOGGER.info("Tunnel " + config.getName() + ": Listener changed, restarting");
+					stopTunnel(current);
+					if (startTunnel(config)) {
+						restarted++;
+					} else {
+						failed++;
+					}
+				}
+			}
+		}
+
+		for (Tunnel tunnel : new ArrayList<Tunnel>(tunnels.values())) {
+			if (!names.contains(tunnel.getName())) {
+				LOGGER.info("Tunnel " + tunnel.getName() + ": Removed");
+				stopTunnel(tunnel);
+				removed++;
+			}
+		}
+
+		LOGGER.info("Tunnels: " + tunnels.size() + " running (" + started + " started, " + retargeted + " retargeted, "
+					+ restarted + " restarted, " + removed + " removed, " + failed + " failed)");
+	}
+
+	/**
+	 * @param config
+	 * @return false if it could not be started. It is not kept then, so the next reload tries again.
+	 */
+	private boolean startTunnel(TunnelConfig config) {
+		final Tunnel tunnel = new Tunnel(config, trafficEngine, metricsRegistry.getTunnel(config.getName()), globalRateLimiter);
+		try {
+			tunnel.start();
+		} catch (IOException e) {
+			LOGGER.error("Tunnel " + config.getName() + ": Can not listen on port " + config.getLocalPort() + ", retried on the next reload", e, STACK_LOGLEVEL.DEBUG);
+			return false;
+		}
+		tunnels.put(config.getName(), tunnel);
+		if (jmxExporter != null) {
+			jmxExporter.register(tunnel);
+		}
+		return true;
+	}
+
+	private void stopTunnel(Tunnel tunnel) {
+		tunnels.remove(tunnel.getName());
+		if (jmxExporter != null) {
+			jmxExporter.unregister(tunnel);
+		}
+		tunnel.stop();
+		tunnel.logStats();
+		retiredTunnels.add(tunnel);
+	}
+
+	/**
+	 * Read the config file again, and apply it. If it can not be read, the
+	 * current tunnels are kept.
+	 */
+	public void reload() {
+		if (configFile == null || isShutdown) {
+			return;
+		}
+
+		LOGGER.info("Reloading " + configFile);
+		try {
+			apply(TunnelConfig.load(configFile));
+		} catch (Throwable e) {
+			LOGGER.error("Could not reload " + configFile + ", keeping the current tunnels", e, STACK_LOGLEVEL.DEBUG);
+		}
+	}
+
+	/**
+	 * Reload on SIGHUP, if the platform supports it. sun.misc.Signal is looked up
+	 * reflectively, so the build stays free of internal API warnings.
+	 */
+	public void enableSignalReload() {
+		try {
+			final Class<?> signalClass = Class.forName("sun.misc.Signal");
+			final Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+			final Object handler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[] {handlerClass}, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if ("handle".equals(method.getName())) {
+						reload();
+						return null;
+					} else if ("equals".equals(method.getName())) {
+						return proxy == args[0];
+					} else if ("hashCode".equals(method.getName())) {
+						return System.identityHashCode(proxy);
+					}
+					return "SIGHUP reload handler";
+				}
+			});
+			final Object signal = signalClass.getConstructor(String.class).newInstance("HUP");
+			signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, handler);
+		} catch (Throwable e) {
+			LOGGER.warn("Reload on SIGHUP is not available: " + (e instanceof InvocationTargetException ? e.getCause() : e));
+		}
+	}
+
+	/**
+	 * Reload whenever the config file changes
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void startWatching() throws IOException {
+		if (configFile == null || watchService != null) {
+			return;
+		}
+
+		final Path file = configFile.getAbsoluteFile().toPath();
+		final WatchService service = FileSystems.getDefault().newWatchService();
+		// Directories are watched, not files. Create is needed for editors replacing the file.
+		file.getParent().register(service, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+		watchService = service;
+
+		final Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch(service, file.getFileName());
+			}
+		}, "ConfigWatcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void watch(WatchService service, Path fileName) {
+		try {
+			while (!isShutdown) {
+				final WatchKey key = service.take();
+				boolean changed = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					changed |= fileName.equals(event.context());
+				}
+				key.reset();
+
+				if (changed) {
+					Thread.sleep(WATCH_SETTLE_TIME);
+					// Events caused by the same write
+					WatchKey pending;
+					while ((pending = service.poll()) != null) {
+						pending.pollEvents();
+						pending.reset();
+					}
+					reload();
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			LOGGER.trace("Config watcher closed");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stop all tunnels, and release {@link #awaitShutdown()}
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			if (isShutdown) {
+				return;
+			}
+			isShutdown = true;
+
+			if (watchService != null) {
+				try {
+					watchService.close();
+				} catch (IOException e) {
+					LOGGER.trace("Could not close config watcher", e);
+				}
+			}
+
+			// Kept in the map, so they can be joined and report their stats
+			for (Tunnel tunnel : tunnels.values()) {
+				tunnel.stop();
+			}
+		}
+		shutdownLatch.countDown();
+	}
+
+	/**
+	 * Wait until all tunnels stopped accepting. Without a config file that is
+	 * when they ended, otherwise only after {@link #shutdown()}, since a
+	 * reload may start new tunnels.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitShutdown() throws InterruptedException {
+		if (configFile != null) {
+			shutdownLatch.await();
+		}
+
+		for (Tunnel tunnel : getTunnels().values()) {
+			tunnel.join();
+		}
+	}
+
+	/**
+	 * Wait for the established connections of all tunnels to end, after {@link #shutdown()}.
+	 * The engine should be shut down afterwards, dropping the connections left.
+	 *
+	 * @param timeout in ms
+	 * @return true if all connections ended in time
+	 * @throws InterruptedException
+	 */
+	public boolean drain(long timeout) throws InterruptedException {
+		final List<Tunnel> all;
+		synchronized (this) {
+			all = new ArrayList<Tunnel>(retiredTunnels);
+			all.addAll(tunnels.values());
+		}
+
+		int active = 0;
+		for (Tunnel tunnel : all) {
+			active += tunnel.getConnectionProcessor().getActiveConnections();
+		}
+		if (active == 0) {
+			return true;
+		}
+
+		LOGGER.info("Draining " + active + " connections, waiting up to " + timeout + "ms");
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		int left = 0;
+		for (Tunnel tunnel : all) {
+			if (!tunnel.awaitIdle(Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())))) {
+				left += tunnel.getConnectionProcessor().getActiveConnections();
+			}
+		}
+
+		if (left > 0) {
+			LOGGER.warn("Drain timeout, dropping " + left + " connections");
+			return false;
+		}
+		LOGGER.info("All connections drained");
+		return true;
+	}
+
+	/**
+	 * @return running tunnels by name
+	 */
+	public synchronized Map<String, Tunnel> getTunnels() {
+		return new LinkedHashMap<String, Tunnel>(tunnels);
+	}
+
+	public void logStats() {
+		for (Tunnel tunnel : getTunnels().values()) {
+			tunnel.logStats();
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package de.einwesen.porttunnel.jmx;
+
+import java.util.concurrent.TimeUnit;
+
+import de.einwesen.porttunnel.metrics.ConnectionMetrics;
+import de.einwesen.porttunnel.net.TunnelConnection;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Exposes a {@link TunnelConnection} through JMX. Connections without metrics
+ * report 0 for all numbers.
+ */
+public class ConnectionControl implements ConnectionControlMXBean {
+
+	private final String tunnelName;
+	private final TunnelConnection connection;
+
+	public ConnectionControl(String tunnelName, TunnelConnection connection) {
+		this.tunnelName = tunnelName;
+		this.connection = connection;
+	}
+
+	@Override
+	public String getTunnel() {
+		return tunnelName;
+	}
+
+	@Override
+	public String getClientName() {
+		return connection.getClientName();
+	}
+
+	@Override
+	public String getTargetName() {
+		return connection.getTargetName();
+	}
+
+	@Override
+	public long getBytesFromClient() {
+		final ConnectionMetrics metrics = connection.getMetrics();
+		return metrics != null ? metrics.getBytesFromClient() : 0;
+	}
+
+	@Override
+	public long getBytesFromTarget() {
+		final ConnectionMetrics metrics = connection.getMetrics();
+		return metrics != null ? metrics.getBytesFromTarget() : 0;
+	}
+
+	@Override
+	public long getAgeMillis() {
+		final ConnectionMetrics metrics = connection.getMetrics();
+		return metrics != null ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - metrics.getAcceptedNanos()) : 0;
+	}
+
+	@Override
+	public long getIdleMillis() {
+		final ConnectionMetrics metrics = connection.getMetrics();
+		return metrics != null ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - metrics.getLastActivityNanos()) : 0;
+	}
+
+	@Override
+	public void close() {
+		connection.close();
+	}
+
+}
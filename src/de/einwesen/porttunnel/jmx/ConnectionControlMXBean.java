@@ -0,0 +1,36 @@
+package de.einwesen.porttunnel.jmx;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Management interface of a single established connection
+ */
+public interface ConnectionControlMXBean {
+
+	String getTunnel();
+
+	String getClientName();
+
+	String getTargetName();
+
+	long getBytesFromClient();
+
+	long getBytesFromTarget();
+
+	/**
+	 * @return ms since the client was accepted
+	 */
+	long getAgeMillis();
+
+	/**
+	 * @return ms since data was last read in either direction
+	 */
+	long getIdleMillis();
+
+	/**
+	 * Close the connection in both directions
+	 */
+	void close();
+
+}
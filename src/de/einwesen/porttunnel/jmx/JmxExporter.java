@@ -0,0 +1,131 @@
+package de.einwesen.porttunnel.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.Tunnel;
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+import de.einwesen.porttunnel.net.ConnectionListener;
+import de.einwesen.porttunnel.net.TunnelConnection;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Registers an MBean for every tunnel, and for every connection while it is
+ * established:
+ *
+ * <pre>
+ * de.einwesen.porttunnel:type=Tunnel,name=&lt;tunnel&gt;
+ * de.einwesen.porttunnel:type=Connection,tunnel=&lt;tunnel&gt;,id=&lt;n&gt;
+ * </pre>
+ *
+ * Connection ids are unique within the process. Errors are only logged, a
+ * tunnel works the same without its MBeans.
+ */
+public class JmxExporter {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(JmxExporter.class));
+
+	public static final String DOMAIN = "de.einwesen.porttunnel";
+
+	private final MBeanServer server;
+	private final AtomicLong nextConnectionId = new AtomicLong(1);
+
+	/**
+	 * Uses the platform MBean server
+	 */
+	public JmxExporter() {
+		this(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	public JmxExporter(MBeanServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Register the tunnel, and from now on its new connections
+	 *
+	 * @param tunnel
+	 */
+	public void register(final Tunnel tunnel) {
+		registerQuietly(new TunnelControl(tunnel), tunnelName(tunnel.getName()));
+
+		tunnel.getConnectionProcessor().setConnectionListener(new ConnectionListener() {
+			@Override
+			public void connectionOpened(TunnelConnection connection) {
+				registerConnection(tunnel.getName(), connection);
+			}
+		});
+	}
+
+	/**
+	 * Unregister the tunnel. The MBeans of its connections stay until they are closed.
+	 *
+	 * @param tunnel
+	 */
+	public void unregister(Tunnel tunnel) {
+		tunnel.getConnectionProcessor().setConnectionListener(null);
+		unregisterQuietly(tunnelName(tunnel.getName()));
+	}
+
+	private void registerConnection(String tunnelName, TunnelConnection connection) {
+		final ObjectName name = objectName("type=Connection,tunnel=" + quoteIfNeeded(tunnelName) + ",id=" + nextConnectionId.getAndIncrement());
+		registerQuietly(new ConnectionControl(tunnelName, connection), name);
+		connection.addCloseListener(new Runnable() {
+			@Override
+			public void run() {
+				unregisterQuietly(name);
+			}
+		});
+	}
+
+	private static ObjectName tunnelName(String name) {
+		return objectName("type=Tunnel,name=" + quoteIfNeeded(name));
+	}
+
+	private static ObjectName objectName(String properties) {
+		try {
+			return new ObjectName(DOMAIN + ":" + properties);
+		} catch (JMException e) {
+			throw new IllegalArgumentException("Invalid MBean name " + properties, e);
+		}
+	}
+
+	/**
+	 * Tunnel names come from the config file, and may contain characters with a meaning in object names
+	 */
+	private static String quoteIfNeeded(String value) {
+		for (char c : new char[] {',', '=', ':', '"', '*', '?', '\n'}) {
+			if (value.indexOf(c) >= 0) {
+				return ObjectName.quote(value);
+			}
+		}
+		return value;
+	}
+
+	private void registerQuietly(Object mbean, ObjectName name) {
+		try {
+			server.registerMBean(mbean, name);
+		} catch (JMException e) {
+			LOGGER.warn("Could not register MBean " + name + ": " + e);
+		}
+	}
+
+	private void unregisterQuietly(ObjectName name) {
+		try {
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			LOGGER.trace("Could not unregister MBean " + name, e);
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+package de.einwesen.porttunnel.jmx;
+
+import de.einwesen.porttunnel.Tunnel;
+import de.einwesen.porttunnel.metrics.TunnelMetrics;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Exposes a {@link Tunnel} through JMX
+ */
+public class TunnelControl implements TunnelControlMXBean {
+
+	private final Tunnel tunnel;
+
+	public TunnelControl(Tunnel tunnel) {
+		this.tunnel = tunnel;
+	}
+
+	private TunnelMetrics metrics() {
+		return tunnel.getConnectionProcessor().getMetrics();
+	}
+
+	@Override
+	public String getName() {
+		return tunnel.getName();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return tunnel.getConfig().getLocalPort();
+	}
+
+	@Override
+	public String getTargets() {
+		return tunnel.getBackendPool().toString();
+	}
+
+	@Override
+	public String getConnectionType() {
+		return tunnel.getConfig().getProxyHost() != null ? "proxy " + tunnel.getConfig().getProxyHost() + ":" + tunnel.getConfig().getProxyPort() : "direct";
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return tunnel.getConnectionProcessor().getActiveConnections();
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return metrics().getAccepted();
+	}
+
+	@Override
+	public long getRejectedConnections() {
+		return metrics().getRejected();
+	}
+
+	@Override
+	public long getFailedConnections() {
+		return metrics().getFailed();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return metrics().getBytesReceived();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return metrics().getBytesSent();
+	}
+
+	@Override
+	public boolean isPaused() {
+		return tunnel.getConnectionProcessor().isPaused();
+	}
+
+	@Override
+	public void setPaused(boolean paused) {
+		tunnel.getConnectionProcessor().setPaused(paused);
+	}
+
+	@Override
+	public long getBandwidthLimit() {
+		return tunnel.getConnectionProcessor().getRateLimiter().getRate();
+	}
+
+	@Override
+	public void setBandwidthLimit(long bytesPerSecond) {
+		tunnel.getConnectionProcessor().getRateLimiter().setRate(bytesPerSecond, tunnel.getConfig().getBandwidthBurst() * 1024L);
+	}
+
+	@Override
+	public long getConnectionBandwidthLimit() {
+		return tunnel.getConnectionProcessor().getConnectionRate();
+	}
+
+	@Override
+	public void setConnectionBandwidthLimit(long bytesPerSecond) {
+		tunnel.getConnectionProcessor().setConnectionRate(bytesPerSecond, tunnel.getConfig().getBandwidthBurst() * 1024L);
+	}
+
+	@Override
+	public int closeAllConnections() {
+		return tunnel.getConnectionProcessor().closeAllConnections();
+	}
+
+}
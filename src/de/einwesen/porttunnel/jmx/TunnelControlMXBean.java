@@ -0,0 +1,63 @@
+package de.einwesen.porttunnel.jmx;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Management interface of a running tunnel
+ */
+public interface TunnelControlMXBean {
+
+	String getName();
+
+	int getLocalPort();
+
+	String getTargets();
+
+	String getConnectionType();
+
+	int getActiveConnections();
+
+	long getAcceptedConnections();
+
+	long getRejectedConnections();
+
+	long getFailedConnections();
+
+	long getBytesReceived();
+
+	long getBytesSent();
+
+	boolean isPaused();
+
+	/**
+	 * @param paused true to stop accepting new clients, established connections keep running
+	 */
+	void setPaused(boolean paused);
+
+	/**
+	 * @return bandwidth of the whole tunnel in bytes per second, 0 if unlimited
+	 */
+	long getBandwidthLimit();
+
+	/**
+	 * @param bytesPerSecond applies to the established connections as well, 0 for unlimited
+	 */
+	void setBandwidthLimit(long bytesPerSecond);
+
+	/**
+	 * @return bandwidth of each connection in bytes per second, 0 if unlimited
+	 */
+	long getConnectionBandwidthLimit();
+
+	/**
+	 * @param bytesPerSecond only applies to new connections, 0 for unlimited
+	 */
+	void setConnectionBandwidthLimit(long bytesPerSecond);
+
+	/**
+	 * @return number of connections closed
+	 */
+	int closeAllConnections();
+
+}
@@ -0,0 +1,204 @@
+package de.einwesen.porttunnel.log;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Writes log lines to {@link System#out} from a thread of its own, so logging
+ * never blocks the caller on the stdout lock.
+ *
+ * Lines go through a bounded ring buffer, which any number of threads can add
+ * to without locking. The writer takes them out in batches, and prints and
+ * flushes each batch at once. If the buffer is full, the line is dropped and
+ * counted, the number of lines lost is written as soon as there is room again.
+ *
+ * The capacity can be set with the system property {@value #CAPACITY_PROPERTY}.
+ */
+public final class AsyncLogWriter {
+
+	public static final String CAPACITY_PROPERTY = "porttunnel.log.buffer";
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	private static final int MAX_BATCH = 256;
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private static final AsyncLogWriter INSTANCE = new AsyncLogWriter(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+
+	private final int mask;
+	private final AtomicReferenceArray<String> lines;
+	/** Per slot: position + 1 once filled, position + capacity once free again **/
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	/** Only changed by the writer **/
+	private final AtomicLong head = new AtomicLong();
+
+	private final LongAdder dropped = new LongAdder();
+	private long droppedReported = 0;
+
+	private final Thread writer;
+	private volatile boolean writerParked = false;
+	private final Object flushLock = new Object();
+
+	private AsyncLogWriter(int capacity) {
+		final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.lines = new AtomicReferenceArray<String>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i=0; i < size; i++) {
+			sequences.set(i, i);
+		}
+
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "LogWriter");
+		this.writer.setDaemon(true);
+		this.writer.start();
+
+		// Best effort for lines logged right before exit, see flush() for a reliable way
+		Runtime.getRuntime().addShutdownHook(new Thread("LogFlush") {
+			@Override
+			public void run() {
+				AsyncLogWriter.this.flush(1000);
+			}
+		});
+	}
+
+	public static AsyncLogWriter getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Queue a line without blocking
+	 *
+	 * @param line
+	 * @return false if it was dropped, because the buffer is full
+	 */
+	public boolean write(String line) {
+		long position;
+		int index;
+		while (true) {
+			position = tail.get();
+			index = (int)(position & mask);
+			final long available = sequences.get(index) - position;
+			if (available == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+			} else if (available < 0) {
+				// The writer has not freed this slot yet
+				dropped.increment();
+				return false;
+			}
+			// Else another thread took the slot meanwhile, so retry
+		}
+
+		lines.set(index, line);
+		sequences.set(index, position + 1);
+
+		if (writerParked) {
+			LockSupport.unpark(writer);
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until all lines queued so far are written
+	 *
+	 * @param timeout in ms
+	 */
+	public void flush(long timeout) {
+		final long target = tail.get();
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		synchronized (flushLock) {
+			long remaining;
+			while (head.get() < target && (remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.unpark(writer);
+				try {
+					TimeUnit.NANOSECONDS.timedWait(flushLock, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(10)));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private void writeLoop() {
+		final StringBuilder batch = new StringBuilder(16 * 1024);
+		while (true) {
+			try {
+				final int count = takeBatch(batch);
+				if (count > 0) {
+					final PrintStream out = System.out;
+					out.print(batch);
+					out.flush();
+					batch.setLength(0);
+					synchronized (flushLock) {
+						flushLock.notifyAll();
+					}
+				} else {
+					writerParked = true;
+					// A line may have been added before the flag was visible
+					if (!hasLine()) {
+						LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					}
+					writerParked = false;
+				}
+			} catch (Throwable e) {
+				// Nowhere left to report it
+				batch.setLength(0);
+			}
+		}
+	}
+
+	private boolean hasLine() {
+		final long position = head.get();
+		return sequences.get((int)(position & mask)) == position + 1;
+	}
+
+	private int takeBatch(StringBuilder batch) {
+		int count = 0;
+		long position = head.get();
+		while (count < MAX_BATCH) {
+			final int index = (int)(position & mask);
+			if (sequences.get(index) != position + 1) {
+				break;
+			}
+			batch.append(lines.get(index)).append(LINE_SEPARATOR);
+			lines.set(index, null);
+			sequences.set(index, position + mask + 1);
+			position++;
+			count++;
+		}
+		head.set(position);
+
+		final long droppedNow = dropped.sum();
+		if (droppedNow > droppedReported) {
+			batch.append(AsyncLogWriter.class.getSimpleName()).append(" - ").append(droppedNow - droppedReported)
+				 .append(" log lines dropped, the log buffer was full").append(LINE_SEPARATOR);
+			droppedReported = droppedNow;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return lines dropped since the start
+	 */
+	public long getDroppedLines() {
+		return dropped.sum();
+	}
+
+}
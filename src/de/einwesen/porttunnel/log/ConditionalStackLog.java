@@ -1,5 +1,7 @@
 package de.einwesen.porttunnel.log;
 
+import java.util.function.Supplier;
+
 import org.apache.commons.logging.Log;
 
 /**
@@ -9,6 +11,10 @@ import org.apache.commons.logging.Log;
  * A logger, which optionally can logs exception stacktraces only 
  * when a certain loglevel is enabled.
  *
+ * Messages can be built lazily, so a disabled level costs neither string
+ * building nor allocation: Either by a {@link Supplier}, or by a format with
+ * {} placeholders and up to three arguments. A {@link Throwable} left over
+ * after the placeholders is logged as exception, as usual.
  */
 public class ConditionalStackLog implements Log {
 
@@ -87,6 +93,85 @@ public class ConditionalStackLog implements Log {
 		}
 	}	
 	
+	/*
+	 * Keep calls with a plain message unambiguous, next to the formatting overloads below
+	 */
+
+	public void debug(String message, Throwable t, STACK_LOGLEVEL showStackTraceOnLevel) {
+		debug((Object)message, t, showStackTraceOnLevel);
+	}
+
+	public void error(String message, Throwable t, STACK_LOGLEVEL showStackTraceOnLevel) {
+		error((Object)message, t, showStackTraceOnLevel);
+	}
+
+	public void fatal(String message, Throwable t, STACK_LOGLEVEL showStackTraceOnLevel) {
+		fatal((Object)message, t, showStackTraceOnLevel);
+	}
+
+	/**
+	 * Like {@link #debug(Object, Throwable, STACK_LOGLEVEL)}, with the message formatted only if debug is enabled
+	 */
+	public void debug(String format, Object arg, Throwable t, STACK_LOGLEVEL showStackTraceOnLevel) {
+		if (master.isDebugEnabled()) {
+			debug((Object)format(format, 1, arg, null, null), t, showStackTraceOnLevel);
+		}
+	}
+
+	/**
+	 * Like {@link #debug(Object, Throwable, STACK_LOGLEVEL)}, with the message formatted only if debug is enabled
+	 */
+	public void debug(String format, Object arg1, Object arg2, Throwable t, STACK_LOGLEVEL showStackTraceOnLevel) {
+		if (master.isDebugEnabled()) {
+			debug((Object)format(format, 2, arg1, arg2, null), t, showStackTraceOnLevel);
+		}
+	}
+
+	/**
+	 * Like {@link #error(Object, Throwable, STACK_LOGLEVEL)}, with the message formatted only if error is enabled
+	 */
+	public void error(String format, Object arg, Throwable t, STACK_LOGLEVEL showStackTraceOnLevel) {
+		if (master.isErrorEnabled()) {
+			error((Object)format(format, 1, arg, null, null), t, showStackTraceOnLevel);
+		}
+	}
+
+	/**
+	 * Like {@link #error(Object, Throwable, STACK_LOGLEVEL)}, with the message formatted only if error is enabled
+	 */
+	public void error(String format, Object arg1, Object arg2, Throwable t, STACK_LOGLEVEL showStackTraceOnLevel) {
+		if (master.isErrorEnabled()) {
+			error((Object)format(format, 2, arg1, arg2, null), t, showStackTraceOnLevel);
+		}
+	}
+
+	/**
+	 * Like {@link #fatal(Object, Throwable, STACK_LOGLEVEL)}, with the message formatted only if fatal is enabled
+	 */
+	public void fatal(String format, Object arg, Throwable t, STACK_LOGLEVEL showStackTraceOnLevel) {
+		if (master.isFatalEnabled()) {
+			fatal((Object)format(format, 1, arg, null, null), t, showStackTraceOnLevel);
+		}
+	}
+
+	/**
+	 * Like {@link #error(Object, Throwable, STACK_LOGLEVEL)}, with the message built only if error is enabled
+	 */
+	public void error(Supplier<?> message, Throwable t, STACK_LOGLEVEL showStackTraceOnLevel) {
+		if (master.isErrorEnabled()) {
+			error(message.get(), t, showStackTraceOnLevel);
+		}
+	}
+
+	/**
+	 * Like {@link #debug(Object, Throwable, STACK_LOGLEVEL)}, with the message built only if debug is enabled
+	 */
+	public void debug(Supplier<?> message, Throwable t, STACK_LOGLEVEL showStackTraceOnLevel) {
+		if (master.isDebugEnabled()) {
+			debug(message.get(), t, showStackTraceOnLevel);
+		}
+	}
+
 	public static ConditionalStackLog getInstance(Log log) {
 		return new ConditionalStackLog(log);
 	}
@@ -185,5 +270,242 @@ public class ConditionalStackLog implements Log {
 	public void warn(Object message, Throwable t) {
 		master.warn(message, t);
 	}
-	
+
+	/*
+	 * Lazy messages. The (String, Throwable) overloads only keep calls with a
+	 * constant message and an exception unambiguous.
+	 */
+
+	public void trace(String message, Throwable t) {
+		master.trace(message, t);
+	}
+
+	public void trace(Supplier<?> message) {
+		if (master.isTraceEnabled()) {
+			master.trace(message.get());
+		}
+	}
+
+	public void trace(String format, Object arg) {
+		if (master.isTraceEnabled()) {
+			log(STACK_LOGLEVEL.TRACE, format, arg, null, null, 1);
+		}
+	}
+
+	public void trace(String format, Object arg1, Object arg2) {
+		if (master.isTraceEnabled()) {
+			log(STACK_LOGLEVEL.TRACE, format, arg1, arg2, null, 2);
+		}
+	}
+
+	public void trace(String format, Object arg1, Object arg2, Object arg3) {
+		if (master.isTraceEnabled()) {
+			log(STACK_LOGLEVEL.TRACE, format, arg1, arg2, arg3, 3);
+		}
+	}
+
+	public void debug(String message, Throwable t) {
+		master.debug(message, t);
+	}
+
+	public void debug(Supplier<?> message) {
+		if (master.isDebugEnabled()) {
+			master.debug(message.get());
+		}
+	}
+
+	public void debug(String format, Object arg) {
+		if (master.isDebugEnabled()) {
+			log(STACK_LOGLEVEL.DEBUG, format, arg, null, null, 1);
+		}
+	}
+
+	public void debug(String format, Object arg1, Object arg2) {
+		if (master.isDebugEnabled()) {
+			log(STACK_LOGLEVEL.DEBUG, format, arg1, arg2, null, 2);
+		}
+	}
+
+	public void debug(String format, Object arg1, Object arg2, Object arg3) {
+		if (master.isDebugEnabled()) {
+			log(STACK_LOGLEVEL.DEBUG, format, arg1, arg2, arg3, 3);
+		}
+	}
+
+	public void info(String message, Throwable t) {
+		master.info(message, t);
+	}
+
+	public void info(Supplier<?> message) {
+		if (master.isInfoEnabled()) {
+			master.info(message.get());
+		}
+	}
+
+	public void info(String format, Object arg) {
+		if (master.isInfoEnabled()) {
+			log(STACK_LOGLEVEL.INFO, format, arg, null, null, 1);
+		}
+	}
+
+	public void info(String format, Object arg1, Object arg2) {
+		if (master.isInfoEnabled()) {
+			log(STACK_LOGLEVEL.INFO, format, arg1, arg2, null, 2);
+		}
+	}
+
+	public void info(String format, Object arg1, Object arg2, Object arg3) {
+		if (master.isInfoEnabled()) {
+			log(STACK_LOGLEVEL.INFO, format, arg1, arg2, arg3, 3);
+		}
+	}
+
+	public void warn(String message, Throwable t) {
+		master.warn(message, t);
+	}
+
+	public void warn(Supplier<?> message) {
+		if (master.isWarnEnabled()) {
+			master.warn(message.get());
+		}
+	}
+
+	public void warn(String format, Object arg) {
+		if (master.isWarnEnabled()) {
+			log(STACK_LOGLEVEL.WARN, format, arg, null, null, 1);
+		}
+	}
+
+	public void warn(String format, Object arg1, Object arg2) {
+		if (master.isWarnEnabled()) {
+			log(STACK_LOGLEVEL.WARN, format, arg1, arg2, null, 2);
+		}
+	}
+
+	public void warn(String format, Object arg1, Object arg2, Object arg3) {
+		if (master.isWarnEnabled()) {
+			log(STACK_LOGLEVEL.WARN, format, arg1, arg2, arg3, 3);
+		}
+	}
+
+	public void error(String message, Throwable t) {
+		master.error(message, t);
+	}
+
+	public void error(Supplier<?> message) {
+		if (master.isErrorEnabled()) {
+			master.error(message.get());
+		}
+	}
+
+	public void error(String format, Object arg) {
+		if (master.isErrorEnabled()) {
+			log(STACK_LOGLEVEL.ERROR, format, arg, null, null, 1);
+		}
+	}
+
+	public void error(String format, Object arg1, Object arg2) {
+		if (master.isErrorEnabled()) {
+			log(STACK_LOGLEVEL.ERROR, format, arg1, arg2, null, 2);
+		}
+	}
+
+	public void error(String format, Object arg1, Object arg2, Object arg3) {
+		if (master.isErrorEnabled()) {
+			log(STACK_LOGLEVEL.ERROR, format, arg1, arg2, arg3, 3);
+		}
+	}
+
+	public void fatal(String message, Throwable t) {
+		master.fatal(message, t);
+	}
+
+	public void fatal(Supplier<?> message) {
+		if (master.isFatalEnabled()) {
+			master.fatal(message.get());
+		}
+	}
+
+	public void fatal(String format, Object arg) {
+		if (master.isFatalEnabled()) {
+			log(STACK_LOGLEVEL.FATAL, format, arg, null, null, 1);
+		}
+	}
+
+	public void fatal(String format, Object arg1, Object arg2) {
+		if (master.isFatalEnabled()) {
+			log(STACK_LOGLEVEL.FATAL, format, arg1, arg2, null, 2);
+		}
+	}
+
+	public void fatal(String format, Object arg1, Object arg2, Object arg3) {
+		if (master.isFatalEnabled()) {
+			log(STACK_LOGLEVEL.FATAL, format, arg1, arg2, arg3, 3);
+		}
+	}
+
+	/**
+	 * @param argCount number of arguments passed, the last one is logged as exception if it has no placeholder
+	 * and is a {@link Throwable}. Null if there is none, which all loggers accept.
+	 */
+	private void log(STACK_LOGLEVEL level, String format, Object arg1, Object arg2, Object arg3, int argCount) {
+		final Object last = argCount == 3 ? arg3 : argCount == 2 ? arg2 : arg1;
+		Throwable t = null;
+		if (last instanceof Throwable && countPlaceholders(format) < argCount) {
+			t = (Throwable)last;
+		}
+		final String message = format(format, argCount, arg1, arg2, arg3);
+
+		switch (level) {
+			case TRACE:
+				master.trace(message, t);
+				break;
+			case DEBUG:
+				master.debug(message, t);
+				break;
+			case INFO:
+				master.info(message, t);
+				break;
+			case WARN:
+				master.warn(message, t);
+				break;
+			case ERROR:
+				master.error(message, t);
+				break;
+			case FATAL:
+				master.fatal(message, t);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknow level " + level);
+		}
+	}
+
+	private static int countPlaceholders(String format) {
+		int count = 0;
+		int index = -1;
+		while ((index = format.indexOf("{}", index + 1)) >= 0) {
+			count++;
+			index++;
+		}
+		return count;
+	}
+
+	/**
+	 * Replaces the {} in <i>format</i> one after the other by the arguments.
+	 * Placeholders without argument are kept.
+	 */
+	static String format(String format, int argCount, Object arg1, Object arg2, Object arg3) {
+		final StringBuilder sb = new StringBuilder(format.length() + 64);
+		int argIndex = 0;
+		int start = 0;
+		int index;
+		while (argIndex < argCount && (index = format.indexOf("{}", start)) >= 0) {
+			final Object arg = argIndex == 0 ? arg1 : argIndex == 1 ? arg2 : arg3;
+			sb.append(format, start, index).append(arg);
+			start = index + 2;
+			argIndex++;
+		}
+		return sb.append(format, start, format.length()).toString();
+	}
+
 }
@@ -7,6 +7,9 @@ import org.apache.commons.logging.impl.SimpleLog;
  * @author EinWesen
  * 
  * A Simple Logger, which redirect to System.out instead of System.err
+ *
+ * Lines are written asynchronously by the {@link AsyncLogWriter}, call
+ * {@link #flush()} before exiting to be sure all of them are written.
  */
 public class SimpleSystemOutLog extends SimpleLog {
 
@@ -16,9 +19,19 @@ public class SimpleSystemOutLog extends SimpleLog {
 		super(name);
 	}
 
+	/** Longest wait of {@link #flush()} in ms **/
+	private static final long FLUSH_TIMEOUT = 5000;
+
 	@Override
 	protected void write(StringBuffer buffer) {
-		System.out.println(buffer.toString());
+		AsyncLogWriter.getInstance().write(buffer.toString());
+	}
+
+	/**
+	 * Wait until all lines logged so far are written
+	 */
+	public static void flush() {
+		AsyncLogWriter.getInstance().flush(FLUSH_TIMEOUT);
 	}
 
 }
@@ -0,0 +1,99 @@
+package de.einwesen.porttunnel.metrics;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Counts the traffic of one connection into the counters of its tunnel and
+ * target. Resolved once per connection, so counting a read is just two adds.
+ *
+ * Each direction must be counted by a single thread only, which is true for
+ * all engines. This allows to detect the first byte and to count the bytes of
+ * the connection itself without synchronization. Other threads may read them.
+ */
+public final class ConnectionMetrics {
+
+	private final TunnelMetrics tunnel;
+	private final TargetMetrics target;
+	private final long acceptedNanos;
+	private boolean clientStarted = false;
+	private boolean targetStarted = false;
+	private volatile long bytesFromClient = 0;
+	private volatile long bytesFromTarget = 0;
+	private volatile long lastActivityNanos;
+
+	ConnectionMetrics(TunnelMetrics tunnel, TargetMetrics target, long acceptedNanos) {
+		this.tunnel = tunnel;
+		this.target = target;
+		this.acceptedNanos = acceptedNanos;
+		this.lastActivityNanos = acceptedNanos;
+		tunnel.activeConnections.incrementAndGet();
+		target.connections.increment();
+		target.activeConnections.incrementAndGet();
+	}
+
+	/**
+	 * @param fromClient direction of the data
+	 * @param bytes
+	 * @param nanos {@link System#nanoTime()} of the read
+	 */
+	public void countBytes(boolean fromClient, int bytes, long nanos) {
+		lastActivityNanos = nanos;
+		if (fromClient) {
+			if (!clientStarted) {
+				clientStarted = true;
+				tunnel.firstByteFromClient.recordNanos(nanos - acceptedNanos);
+			}
+			bytesFromClient += bytes;
+			tunnel.bytesReceived.add(bytes);
+			target.bytesSent.add(bytes);
+		} else {
+			if (!targetStarted) {
+				targetStarted = true;
+				tunnel.firstByteFromTarget.recordNanos(nanos - acceptedNanos);
+			}
+			bytesFromTarget += bytes;
+			target.bytesReceived.add(bytes);
+			tunnel.bytesSent.add(bytes);
+		}
+	}
+
+	/**
+	 * @param reads merged into the write of an earlier read
+	 */
+	public void countCoalesced(int reads) {
+		tunnel.coalescedReads.add(reads);
+	}
+
+	/**
+	 * Must be called exactly once
+	 */
+	public void closed() {
+		tunnel.duration.recordNanos(System.nanoTime() - acceptedNanos);
+		tunnel.activeConnections.decrementAndGet();
+		target.activeConnections.decrementAndGet();
+	}
+
+	public long getBytesFromClient() {
+		return bytesFromClient;
+	}
+
+	public long getBytesFromTarget() {
+		return bytesFromTarget;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the client was accepted
+	 */
+	public long getAcceptedNanos() {
+		return acceptedNanos;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} of the last read in either direction
+	 */
+	public long getLastActivityNanos() {
+		return lastActivityNanos;
+	}
+
+}
@@ -0,0 +1,13 @@
+package de.einwesen.porttunnel.metrics;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * A value read on every scrape
+ */
+public interface Gauge {
+
+	public long getValue();
+
+}
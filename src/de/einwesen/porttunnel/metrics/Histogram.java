@@ -0,0 +1,128 @@
+package de.einwesen.porttunnel.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Distribution of durations in microseconds, with fixed memory and without locks.
+ *
+ * Buckets are logarithmic: Every power of two is split into {@value #SUB_BUCKETS}
+ * linear sub buckets, so a percentile is off by at most 1/{@value #SUB_BUCKETS}
+ * of its value. Values below {@value #SUB_BUCKETS}us are exact, values above
+ * 2^{@value #MAX_EXPONENT}us (about 12 days) end up in the last bucket.
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	public static final int MAX_EXPONENT = 40;
+	private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos duration, negative values count as 0
+	 */
+	public void recordNanos(long nanos) {
+		record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * @param micros duration, negative values count as 0
+	 */
+	public void record(long micros) {
+		final long value = Math.max(0, micros);
+		buckets.incrementAndGet(bucketIndex(value));
+		count.increment();
+		sum.add(value);
+
+		long currentMax;
+		while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+			// retry
+		}
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		final int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+		if (exponent == MAX_EXPONENT && value >= (1L << (MAX_EXPONENT + 1))) {
+			return BUCKET_COUNT - 1;
+		}
+		final int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return highest value, which falls into the bucket
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		final long lower = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+		return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * Percentiles of the values recorded so far. Values recorded meanwhile may
+	 * or may not be included.
+	 *
+	 * @param quantiles between 0 and 1, ascending
+	 * @return upper bounds of the buckets the quantiles fall into in us, but not above the maximum
+	 */
+	public long[] getQuantiles(double... quantiles) {
+		final long[] snapshot = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i=0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+
+		final long[] result = new long[quantiles.length];
+		if (total == 0) {
+			return result;
+		}
+
+		final long currentMax = max.get();
+		long seen = 0;
+		int bucket = 0;
+		for (int q=0; q < quantiles.length; q++) {
+			final long rank = Math.max(1, (long)Math.ceil(quantiles[q] * total));
+			while (bucket < BUCKET_COUNT - 1 && seen + snapshot[bucket] < rank) {
+				seen += snapshot[bucket++];
+			}
+			result[q] = Math.min(bucketUpperBound(bucket), currentMax);
+		}
+		return result;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return sum of all values in us
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return highest value in us
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+}
@@ -0,0 +1,293 @@
+package de.einwesen.porttunnel.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * All metrics of the process. Tunnels keep their counters across restarts and
+ * reloads, as long as their name stays the same.
+ */
+public class MetricsRegistry {
+
+	public static final String PREFIX = "porttunnel_";
+
+	/** Reported for every {@link Histogram} **/
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private static final class NamedGauge {
+		private final String name;
+		private final String help;
+		private final boolean counter;
+		private final Gauge gauge;
+
+		NamedGauge(String name, String help, boolean counter, Gauge gauge) {
+			this.name = name;
+			this.help = help;
+			this.counter = counter;
+			this.gauge = gauge;
+		}
+	}
+
+	/** Reads one value of a tunnel **/
+	private interface TunnelValue {
+		long get(TunnelMetrics tunnel);
+	}
+
+	/** Reads one value of a target **/
+	private interface TargetValue {
+		long get(TargetMetrics target);
+	}
+
+	/** Reads a histogram of a tunnel **/
+	private interface TunnelHistogram {
+		Histogram get(TunnelMetrics tunnel);
+	}
+
+	private final ConcurrentMap<String, TunnelMetrics> tunnels = new ConcurrentHashMap<String, TunnelMetrics>();
+	private final List<NamedGauge> gauges = new CopyOnWriteArrayList<NamedGauge>();
+
+	/**
+	 * @param name of the tunnel
+	 * @return its counters, created on first use
+	 */
+	public TunnelMetrics getTunnel(String name) {
+		TunnelMetrics metrics = tunnels.get(name);
+		if (metrics == null) {
+			final TunnelMetrics newMetrics = new TunnelMetrics(name);
+			metrics = tunnels.putIfAbsent(name, newMetrics);
+			if (metrics == null) {
+				metrics = newMetrics;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Export a value, which is not kept by the registry itself
+	 *
+	 * @param name without {@link #PREFIX}
+	 * @param help
+	 * @param counter true if the value only grows, false for a gauge
+	 * @param gauge
+	 */
+	public void register(String name, String help, boolean counter, Gauge gauge) {
+		gauges.add(new NamedGauge(PREFIX + name, help, counter, gauge));
+	}
+
+	/**
+	 * @return all metrics in the Prometheus text format
+	 */
+	public String toPrometheusText() {
+		final StringBuilder sb = new StringBuilder(4096);
+		final List<TunnelMetrics> tunnelList = new ArrayList<TunnelMetrics>(tunnels.values());
+
+		writeTunnelFamily(sb, tunnelList, "connections_accepted_total", "Accepted client connections", true, new TunnelValue() {
+			@Override
+			public long get(TunnelMetrics tunnel) {
+				return tunnel.getAccepted();
+			}
+		});
+		writeTunnelFamily(sb, tunnelList, "connections_rejected_total", "Clients rejected by the connection limit", true, new TunnelValue() {
+			@Override
+			public long get(TunnelMetrics tunnel) {
+				return tunnel.getRejected();
+			}
+		});
+		writeTunnelFamily(sb, tunnelList, "connections_failed_total", "Clients for which no target could be connected, or the connection could not be set up", true, new TunnelValue() {
+			@Override
+			public long get(TunnelMetrics tunnel) {
+				return tunnel.getFailed();
+			}
+		});
+		writeTunnelFamily(sb, tunnelList, "connections_timed_out_total", "Connections closed by their idle, write or lifetime timeout", true, new TunnelValue() {
+			@Override
+			public long get(TunnelMetrics tunnel) {
+				return tunnel.getTimedOut();
+			}
+		});
+		writeTunnelFamily(sb, tunnelList, "connections_active", "Established connections", false, new TunnelValue() {
+			@Override
+			public long get(TunnelMetrics tunnel) {
+				return tunnel.getActiveConnections();
+			}
+		});
+		writeTunnelFamily(sb, tunnelList, "bytes_received_total", "Bytes received from clients", true, new TunnelValue() {
+			@Override
+			public long get(TunnelMetrics tunnel) {
+				return tunnel.getBytesReceived();
+			}
+		});
+		writeTunnelFamily(sb, tunnelList, "bytes_sent_total", "Bytes sent to clients", true, new TunnelValue() {
+			@Override
+			public long get(TunnelMetrics tunnel) {
+				return tunnel.getBytesSent();
+			}
+		});
+		writeTunnelFamily(sb, tunnelList, "reads_coalesced_total", "Reads written together with an earlier read, each saving a write", true, new TunnelValue() {
+			@Override
+			public long get(TunnelMetrics tunnel) {
+				return tunnel.getCoalescedReads();
+			}
+		});
+
+		writeTargetFamily(sb, tunnelList, "target_connections_total", "Connections established to the target", true, new TargetValue() {
+			@Override
+			public long get(TargetMetrics target) {
+				return target.getConnections();
+			}
+		});
+		writeTargetFamily(sb, tunnelList, "target_connect_failures_total", "Failed connects to the target", true, new TargetValue() {
+			@Override
+			public long get(TargetMetrics target) {
+				return target.getConnectFailures();
+			}
+		});
+		writeTargetFamily(sb, tunnelList, "target_connections_active", "Established connections to the target", false, new TargetValue() {
+			@Override
+			public long get(TargetMetrics target) {
+				return target.getActiveConnections();
+			}
+		});
+		writeTargetFamily(sb, tunnelList, "target_bytes_sent_total", "Bytes sent to the target", true, new TargetValue() {
+			@Override
+			public long get(TargetMetrics target) {
+				return target.getBytesSent();
+			}
+		});
+		writeTargetFamily(sb, tunnelList, "target_bytes_received_total", "Bytes received from the target", true, new TargetValue() {
+			@Override
+			public long get(TargetMetrics target) {
+				return target.getBytesReceived();
+			}
+		});
+
+		writeTargetSummary(sb, tunnelList, "target_connect_seconds", "Time to connect to the target, including a proxy handshake");
+		writeTunnelSummary(sb, tunnelList, "first_byte_seconds", "Time from accept to the first byte in each direction", "client", new TunnelHistogram() {
+			@Override
+			public Histogram get(TunnelMetrics tunnel) {
+				return tunnel.getFirstByteFromClient();
+			}
+		}, "target", new TunnelHistogram() {
+			@Override
+			public Histogram get(TunnelMetrics tunnel) {
+				return tunnel.getFirstByteFromTarget();
+			}
+		});
+		writeTunnelSummary(sb, tunnelList, "connection_duration_seconds", "Time from accept to close", null, new TunnelHistogram() {
+			@Override
+			public Histogram get(TunnelMetrics tunnel) {
+				return tunnel.getDuration();
+			}
+		}, null, null);
+
+		for (NamedGauge gauge : gauges) {
+			writeHeader(sb, gauge.name, gauge.help, gauge.counter);
+			sb.append(gauge.name).append(' ').append(gauge.gauge.getValue()).append('\n');
+		}
+
+		return sb.toString();
+	}
+
+	private static void writeTunnelFamily(StringBuilder sb, List<TunnelMetrics> tunnelList, String name, String help, boolean counter, TunnelValue value) {
+		writeHeader(sb, PREFIX + name, help, counter);
+		for (TunnelMetrics tunnel : tunnelList) {
+			sb.append(PREFIX).append(name).append("{tunnel=\"");
+			appendEscaped(sb, tunnel.getName());
+			sb.append("\"} ").append(value.get(tunnel)).append('\n');
+		}
+	}
+
+	private static void writeTargetFamily(StringBuilder sb, List<TunnelMetrics> tunnelList, String name, String help, boolean counter, TargetValue value) {
+		writeHeader(sb, PREFIX + name, help, counter);
+		for (TunnelMetrics tunnel : tunnelList) {
+			for (TargetMetrics target : tunnel.getTargets()) {
+				sb.append(PREFIX).append(name).append("{tunnel=\"");
+				appendEscaped(sb, tunnel.getName());
+				sb.append("\",target=\"");
+				appendEscaped(sb, target.getTarget());
+				sb.append("\"} ").append(value.get(target)).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * Writes one or two histograms per tunnel, the second one distinguished by the <i>direction</i> label
+	 */
+	private static void writeTunnelSummary(StringBuilder sb, List<TunnelMetrics> tunnelList, String name, String help,
+										   String direction1, TunnelHistogram histogram1, String direction2, TunnelHistogram histogram2) {
+		writeHeader(sb, PREFIX + name, help, "summary");
+		for (TunnelMetrics tunnel : tunnelList) {
+			final StringBuilder labels = new StringBuilder("tunnel=\"");
+			appendEscaped(labels, tunnel.getName());
+			labels.append('"');
+			if (direction1 == null) {
+				writeSummaryValues(sb, PREFIX + name, labels.toString(), histogram1.get(tunnel));
+			} else {
+				writeSummaryValues(sb, PREFIX + name, labels + ",direction=\"" + direction1 + "\"", histogram1.get(tunnel));
+				writeSummaryValues(sb, PREFIX + name, labels + ",direction=\"" + direction2 + "\"", histogram2.get(tunnel));
+			}
+		}
+	}
+
+	private static void writeTargetSummary(StringBuilder sb, List<TunnelMetrics> tunnelList, String name, String help) {
+		writeHeader(sb, PREFIX + name, help, "summary");
+		for (TunnelMetrics tunnel : tunnelList) {
+			for (TargetMetrics target : tunnel.getTargets()) {
+				final StringBuilder labels = new StringBuilder("tunnel=\"");
+				appendEscaped(labels, tunnel.getName());
+				labels.append("\",target=\"");
+				appendEscaped(labels, target.getTarget());
+				labels.append('"');
+				writeSummaryValues(sb, PREFIX + name, labels.toString(), target.getConnectTime());
+			}
+		}
+	}
+
+	private static void writeSummaryValues(StringBuilder sb, String name, String labels, Histogram histogram) {
+		final long[] values = histogram.getQuantiles(QUANTILES);
+		for (int i=0; i < QUANTILES.length; i++) {
+			sb.append(name).append('{').append(labels).append(",quantile=\"").append(QUANTILES[i]).append("\"} ")
+			  .append(toSeconds(values[i])).append('\n');
+		}
+		sb.append(name).append("_sum{").append(labels).append("} ").append(toSeconds(histogram.getSum())).append('\n');
+		sb.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+	}
+
+	private static String toSeconds(long micros) {
+		return Double.toString(micros / 1000000.0);
+	}
+
+	private static void writeHeader(StringBuilder sb, String name, String help, boolean counter) {
+		writeHeader(sb, name, help, counter ? "counter" : "gauge");
+	}
+
+	private static void writeHeader(StringBuilder sb, String name, String help, String type) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void appendEscaped(StringBuilder sb, String labelValue) {
+		for (int i=0; i < labelValue.length(); i++) {
+			final char c = labelValue.charAt(i);
+			if (c == '\\' || c == '"') {
+				sb.append('\\').append(c);
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else {
+				sb.append(c);
+			}
+		}
+	}
+
+	public Map<String, TunnelMetrics> getTunnels() {
+		return tunnels;
+	}
+
+}
@@ -0,0 +1,81 @@
+package de.einwesen.porttunnel.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.LogFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+import de.einwesen.porttunnel.net.NamedThreadFactory;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Serves a {@link MetricsRegistry} as <i>/metrics</i> in the Prometheus text format.
+ * Only listens on the loopback interface.
+ */
+public class MetricsServer {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(MetricsServer.class));
+
+	public static final String PATH = "/metrics";
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/**
+	 * @param port
+	 * @param registry
+	 * @throws IOException if the port can not be bound
+	 */
+	public MetricsServer(int port, final MetricsRegistry registry) throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("Metrics"));
+		this.server.setExecutor(executor);
+		this.server.createContext(PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+						exchange.sendResponseHeaders(405, -1);
+						return;
+					}
+					final byte[] body = registry.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+					if ("HEAD".equals(exchange.getRequestMethod())) {
+						exchange.sendResponseHeaders(200, -1);
+						return;
+					}
+					exchange.sendResponseHeaders(200, body.length);
+					final OutputStream os = exchange.getResponseBody();
+					os.write(body);
+					os.close();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+		LOGGER.info("Metrics on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + PATH);
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+}
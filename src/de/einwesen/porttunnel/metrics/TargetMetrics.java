@@ -0,0 +1,69 @@
+package de.einwesen.porttunnel.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Counters of one target of a tunnel
+ */
+public class TargetMetrics {
+
+	private final String target;
+
+	final LongAdder connections = new LongAdder();
+	final LongAdder connectFailures = new LongAdder();
+	final AtomicInteger activeConnections = new AtomicInteger();
+	/** Sent to the target **/
+	final LongAdder bytesSent = new LongAdder();
+	/** Received from the target **/
+	final LongAdder bytesReceived = new LongAdder();
+	/** Including a proxy handshake **/
+	final Histogram connectTime = new Histogram();
+
+	TargetMetrics(String target) {
+		this.target = target;
+	}
+
+	public void connectFailed() {
+		connectFailures.increment();
+	}
+
+	/**
+	 * @param nanos it took to connect
+	 */
+	public void connectSucceeded(long nanos) {
+		connectTime.recordNanos(nanos);
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public long getConnections() {
+		return connections.sum();
+	}
+
+	public long getConnectFailures() {
+		return connectFailures.sum();
+	}
+
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public Histogram getConnectTime() {
+		return connectTime;
+	}
+
+}
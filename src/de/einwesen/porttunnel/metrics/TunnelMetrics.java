@@ -0,0 +1,149 @@
+package de.einwesen.porttunnel.metrics;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Counters of one tunnel, and of the targets it connected to. All counters are
+ * {@link LongAdder}s, so threads updating them do not contend.
+ */
+public class TunnelMetrics {
+
+	private final String name;
+
+	final LongAdder accepted = new LongAdder();
+	final LongAdder rejected = new LongAdder();
+	final LongAdder failed = new LongAdder();
+	final LongAdder timedOut = new LongAdder();
+	final AtomicInteger activeConnections = new AtomicInteger();
+	/** Received from clients **/
+	final LongAdder bytesReceived = new LongAdder();
+	/** Sent to clients **/
+	final LongAdder bytesSent = new LongAdder();
+	/** Reads written together with an earlier one, each saved a write **/
+	final LongAdder coalescedReads = new LongAdder();
+	/** From accept to the first byte of the client **/
+	final Histogram firstByteFromClient = new Histogram();
+	/** From accept to the first byte of the target **/
+	final Histogram firstByteFromTarget = new Histogram();
+	/** From accept to close **/
+	final Histogram duration = new Histogram();
+
+	private final ConcurrentMap<String, TargetMetrics> targets = new ConcurrentHashMap<String, TargetMetrics>();
+
+	/**
+	 * @param name of the tunnel
+	 */
+	public TunnelMetrics(String name) {
+		this.name = name;
+	}
+
+	public void connectionAccepted() {
+		accepted.increment();
+	}
+
+	public void connectionRejected() {
+		rejected.increment();
+	}
+
+	/**
+	 * No target could be connected for a client, or the connection could not be set up afterwards
+	 */
+	public void connectionFailed() {
+		failed.increment();
+	}
+
+	/**
+	 * An established connection was closed by one of its timeouts
+	 */
+	public void connectionTimedOut() {
+		timedOut.increment();
+	}
+
+	/**
+	 * @param target as host:port
+	 * @return counters of the target, created on first use
+	 */
+	public TargetMetrics getTarget(String target) {
+		TargetMetrics metrics = targets.get(target);
+		if (metrics == null) {
+			final TargetMetrics newMetrics = new TargetMetrics(target);
+			metrics = targets.putIfAbsent(target, newMetrics);
+			if (metrics == null) {
+				metrics = newMetrics;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * A connection to <i>target</i> was established. Its traffic is counted
+	 * with the returned object, until {@link ConnectionMetrics#closed()}.
+	 *
+	 * @param target
+	 * @param acceptedNanos {@link System#nanoTime()} when the client was accepted
+	 * @return counters for this connection
+	 */
+	public ConnectionMetrics connectionOpened(TargetMetrics target, long acceptedNanos) {
+		return new ConnectionMetrics(this, target, acceptedNanos);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Collection<TargetMetrics> getTargets() {
+		return targets.values();
+	}
+
+	public long getAccepted() {
+		return accepted.sum();
+	}
+
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	public long getTimedOut() {
+		return timedOut.sum();
+	}
+
+	public long getCoalescedReads() {
+		return coalescedReads.sum();
+	}
+
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public Histogram getFirstByteFromClient() {
+		return firstByteFromClient;
+	}
+
+	public Histogram getFirstByteFromTarget() {
+		return firstByteFromTarget;
+	}
+
+	public Histogram getDuration() {
+		return duration;
+	}
+
+}
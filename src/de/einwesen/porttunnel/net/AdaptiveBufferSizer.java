@@ -0,0 +1,82 @@
+package de.einwesen.porttunnel.net;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Decides the read buffer size of one direction. The size doubles when reads
+ * keep filling the buffer, and halves when reads keep using only a small
+ * part of it. After a quiet period it drops back to the minimum at once, with
+ * the next read. The thread engines keep their buffer while blocked in that
+ * read, the NIO engine gives the buffer of an idle direction back to the
+ * {@link BufferPool}, see {@link NioTunnel}.
+ *
+ * Not thread safe, every processor has its own.
+ */
+class AdaptiveBufferSizer {
+
+	/** consecutive full reads, before the buffer grows **/
+	private static final int GROW_AFTER = 2;
+	/** consecutive reads using less than a quarter, before the buffer shrinks **/
+	private static final int SHRINK_AFTER = 16;
+	/** a read returning after waiting this long, counts as quiet connection **/
+	static final long QUIET_NANOS = 1000L * 1000 * 1000;
+
+	private final int minSize;
+	private final int maxSize;
+	private int size;
+
+	private int fullReads = 0;
+	private int smallReads = 0;
+	private long lastReadNanos = System.nanoTime();
+
+	AdaptiveBufferSizer(TrafficSettings settings) {
+		this.minSize = settings.getMinBufferSize();
+		this.maxSize = settings.getMaxBufferSize();
+		this.size = settings.getBufferSize();
+	}
+
+	int getSize() {
+		return size;
+	}
+
+	int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * Record the result of a read.
+	 *
+	 * @param readBytes
+	 * @return true, if the size has changed
+	 */
+	boolean update(int readBytes) {
+		if (minSize == maxSize) {
+			return false;
+		}
+
+		final int oldSize = size;
+		final long now = System.nanoTime();
+
+		if (readBytes >= size) {
+			smallReads = 0;
+			if (++fullReads >= GROW_AFTER) {
+				fullReads = 0;
+				size = Math.min(size * 2, maxSize);
+			}
+		} else {
+			fullReads = 0;
+			if (now - lastReadNanos > QUIET_NANOS) {
+				smallReads = 0;
+				size = minSize;
+			} else if (readBytes < size / 4 && ++smallReads >= SHRINK_AFTER) {
+				smallReads = 0;
+				size = Math.max(size / 2, minSize);
+			}
+		}
+
+		lastReadNanos = now;
+		return size != oldSize;
+	}
+
+}
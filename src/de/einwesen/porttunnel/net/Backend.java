@@ -0,0 +1,133 @@
+package de.einwesen.porttunnel.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * One target of a {@link BackendPool}, together with its health and load.
+ * The connect latency is kept as exponentially weighted moving average.
+ */
+public class Backend {
+
+	/** Weight of a new sample in the latency average, as 1/n **/
+	private static final int LATENCY_SMOOTHING = 4;
+
+	private final String host;
+	private final int port;
+
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicLong latencyNanos = new AtomicLong();
+	private final LongAdder totalConnections = new LongAdder();
+	private final LongAdder failedConnects = new LongAdder();
+
+	private volatile boolean healthy = true;
+	private volatile long ejectedUntilNanos = 0;
+
+	/**
+	 * @param host
+	 * @param port
+	 */
+	public Backend(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * @return true if neither the health check failed, nor it is ejected after failed connects
+	 */
+	public boolean isAvailable() {
+		return healthy && System.nanoTime() - ejectedUntilNanos >= 0;
+	}
+
+	void connectSucceeded(long connectNanos) {
+		consecutiveFailures.set(0);
+		recordLatency(connectNanos);
+	}
+
+	/**
+	 * @return number of failures in a row, including this one
+	 */
+	int connectFailed() {
+		failedConnects.increment();
+		return consecutiveFailures.incrementAndGet();
+	}
+
+	void eject(long durationMs) {
+		ejectedUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+		consecutiveFailures.set(0);
+	}
+
+	void setHealthy(boolean healthy) {
+		this.healthy = healthy;
+		if (healthy) {
+			ejectedUntilNanos = 0;
+		}
+	}
+
+	void recordLatency(long sampleNanos) {
+		long current;
+		long updated;
+		do {
+			current = latencyNanos.get();
+			updated = current == 0 ? sampleNanos : current + (sampleNanos - current) / LATENCY_SMOOTHING;
+		} while (!latencyNanos.compareAndSet(current, Math.max(1, updated)));
+	}
+
+	void connectionStarted() {
+		activeConnections.incrementAndGet();
+		totalConnections.increment();
+	}
+
+	void connectionEnded() {
+		activeConnections.decrementAndGet();
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	/**
+	 * @return average connect time in ns, 0 if not known yet
+	 */
+	public long getLatencyNanos() {
+		return latencyNanos.get();
+	}
+
+	public long getTotalConnections() {
+		return totalConnections.sum();
+	}
+
+	public long getFailedConnects() {
+		return failedConnects.sum();
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+
+	public String getStatsString() {
+		return this + " " + (isAvailable() ? "up" : "down") + " active=" + getActiveConnections()
+				+ " total=" + getTotalConnections() + " failed=" + getFailedConnects()
+				+ " latency=" + TimeUnit.NANOSECONDS.toMicros(getLatencyNanos()) + "us";
+	}
+
+}
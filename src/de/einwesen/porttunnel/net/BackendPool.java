@@ -0,0 +1,239 @@
+package de.einwesen.porttunnel.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * A set of equivalent targets for one local port. Picks a backend for every new
+ * connection according to a {@link Strategy}, and keeps track of their health:
+ *
+ * Actively, by periodically opening (and closing) a connection to each backend.
+ * A failed probe takes the backend out of rotation, a successful one brings it back.
+ * The probe factory should time out within the interval, a probe timing out
+ * counts as failed.
+ *
+ * Passively, by counting failed connects of real clients. After
+ * <i>maxFailures</i> in a row the backend is ejected for <i>ejectTime</i> ms.
+ *
+ * If no backend is available at all, all of them are tried anyway.
+ */
+public class BackendPool {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(BackendPool.class));
+
+	public static final int DEFAULT_MAX_FAILURES = 3;
+	public static final int DEFAULT_EJECT_TIME = 10000;
+
+	public enum Strategy {
+		/** One after the other **/
+		ROUND_ROBIN,
+		/** The one with the fewest active connections **/
+		LEAST_ACTIVE,
+		/** The one with the lowest connect latency, weighted by its active connections **/
+		LATENCY
+	}
+
+	private final List<Backend> backends;
+	private final Strategy strategy;
+	private final AtomicInteger nextIndex = new AtomicInteger();
+
+	private int maxFailures = DEFAULT_MAX_FAILURES;
+	private long ejectTime = DEFAULT_EJECT_TIME;
+
+	private ScheduledExecutorService healthChecker = null;
+
+	/**
+	 * @param backends
+	 * @param strategy
+	 */
+	public BackendPool(List<Backend> backends, Strategy strategy) {
+		if (backends.isEmpty()) {
+			throw new IllegalArgumentException("At least one backend is required");
+		}
+		this.backends = Collections.unmodifiableList(new ArrayList<Backend>(backends));
+		this.strategy = strategy;
+	}
+
+	/**
+	 * A pool with a single backend
+	 *
+	 * @param host
+	 * @param port
+	 */
+	public BackendPool(String host, int port) {
+		this(Collections.singletonList(new Backend(host, port)), Strategy.ROUND_ROBIN);
+	}
+
+	/**
+	 * Choose the backend for a new connection
+	 *
+	 * @param exclude backends already tried for this connection
+	 * @return null if all backends are excluded
+	 */
+	public Backend choose(Collection<Backend> exclude) {
+		final List<Backend> candidates = new ArrayList<Backend>(backends.size());
+		for (Backend backend : backends) {
+			if (backend.isAvailable() && !exclude.contains(backend)) {
+				candidates.add(backend);
+			}
+		}
+
+		if (candidates.isEmpty()) {
+			// Better to try a backend which is down, than to fail for sure
+			for (Backend backend : backends) {
+				if (!exclude.contains(backend)) {
+					candidates.add(backend);
+				}
+			}
+			if (candidates.isEmpty()) {
+				return null;
+			}
+		}
+
+		// Starting at a rotating offset spreads ties evenly
+		final int offset = Math.abs(nextIndex.getAndIncrement() % candidates.size());
+		if (strategy == Strategy.ROUND_ROBIN) {
+			return candidates.get(offset);
+		}
+
+		Backend best = null;
+		long bestScore = Long.MAX_VALUE;
+		for (int i=0; i < candidates.size(); i++) {
+			final Backend backend = candidates.get((offset + i) % candidates.size());
+			final long score = score(backend);
+			if (score < bestScore) {
+				best = backend;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	private long score(Backend backend) {
+		if (strategy == Strategy.LEAST_ACTIVE) {
+			return backend.getActiveConnections();
+		}
+		// Unknown latency counts as fastest, so a new backend gets measured
+		return backend.getLatencyNanos() * (backend.getActiveConnections() + 1);
+	}
+
+	/**
+	 * @param backend
+	 * @param connectNanos time it took to connect
+	 */
+	public void reportSuccess(Backend backend, long connectNanos) {
+		backend.connectSucceeded(connectNanos);
+	}
+
+	/**
+	 * @param backend which could not be connected
+	 */
+	public void reportFailure(Backend backend) {
+		if (backend.connectFailed() >= maxFailures && maxFailures > 0) {
+			LOGGER.warn("Ejecting " + backend + " for " + ejectTime + "ms after " + maxFailures + " failed connects");
+			backend.eject(ejectTime);
+		}
+	}
+
+	/**
+	 * Start probing all backends in the background
+	 *
+	 * @param probeFactory used to open the probe connections
+	 * @param interval in ms between probes
+	 */
+	public synchronized void startHealthChecks(final TunnelSocketFactory probeFactory, long interval) {
+		if (healthChecker != null || interval <= 0) {
+			return;
+		}
+
+		final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(Math.min(backends.size(), 4), new NamedThreadFactory("HealthCheck"));
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		healthChecker = executor;
+
+		for (final Backend backend : backends) {
+			healthChecker.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					probe(probeFactory, backend);
+				}
+			}, 0, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void probe(TunnelSocketFactory probeFactory, Backend backend) {
+		final long start = System.nanoTime();
+		try {
+			final Socket socket = probeFactory.openSocket(backend.getHost(), backend.getPort());
+			backend.recordLatency(System.nanoTime() - start);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				LOGGER.trace("Could not close probe connection", e);
+			}
+
+			if (!backend.isHealthy()) {
+				LOGGER.info("Backend " + backend + " is up");
+			}
+			backend.setHealthy(true);
+		} catch (Throwable e) {
+			if (backend.isHealthy()) {
+				LOGGER.warn("Backend " + backend + " is down: " + e);
+			}
+			backend.setHealthy(false);
+		}
+	}
+
+	public synchronized void stopHealthChecks() {
+		if (healthChecker != null) {
+			healthChecker.shutdownNow();
+			healthChecker = null;
+		}
+	}
+
+	/**
+	 * @param maxFailures failed connects in a row, after which a backend is ejected. 0 to never eject.
+	 */
+	public void setMaxFailures(int maxFailures) {
+		this.maxFailures = maxFailures;
+	}
+
+	/**
+	 * @param ejectTime in ms, until an ejected backend is tried again
+	 */
+	public void setEjectTime(long ejectTime) {
+		this.ejectTime = ejectTime;
+	}
+
+	public List<Backend> getBackends() {
+		return backends;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	public int size() {
+		return backends.size();
+	}
+
+	@Override
+	public String toString() {
+		return backends.size() == 1 ? backends.get(0).toString() : backends + " (" + strategy + ")";
+	}
+
+}
@@ -0,0 +1,146 @@
+package de.einwesen.porttunnel.net;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Shared pool of direct buffers, to be borrowed by the connections and returned
+ * when they are done. Sizes are rounded up to the next power of two, each size
+ * class has its own lock-free free list.
+ *
+ * The pool never allocates more direct memory than <i>maxMemory</i>. If the limit is
+ * reached, or a size is bigger than the largest class, a plain heap buffer is
+ * handed out instead, which is dropped on release.
+ */
+public class BufferPool {
+
+	public static final int MIN_CLASS_SIZE = 1024;
+	public static final int MAX_CLASS_SIZE = 256 * 1024;
+	public static final long DEFAULT_MAX_MEMORY = 64L * 1024 * 1024;
+
+	private static final int MIN_CLASS_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+	private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - MIN_CLASS_SHIFT + 1;
+
+	private final long maxMemory;
+	private final Queue<ByteBuffer>[] freeLists;
+	private final AtomicLong allocatedMemory = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder overflows = new LongAdder();
+
+	/**
+	 * @param maxMemory upper limit for all direct buffers allocated by this pool
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(long maxMemory) {
+		this.maxMemory = maxMemory;
+		this.freeLists = new Queue[CLASS_COUNT];
+		for (int i=0; i < CLASS_COUNT; i++) {
+			this.freeLists[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+	}
+
+	public BufferPool() {
+		this(DEFAULT_MAX_MEMORY);
+	}
+
+	/**
+	 * Borrow a cleared buffer, with at least <i>size</i> bytes capacity.
+	 *
+	 * @param size
+	 * @return
+	 */
+	public ByteBuffer acquire(int size) {
+		final int sizeClass = sizeClassOf(size);
+
+		if (sizeClass < CLASS_COUNT) {
+			final ByteBuffer buffer = freeLists[sizeClass].poll();
+			if (buffer != null) {
+				hits.increment();
+				return buffer;
+			}
+
+			final int classSize = MIN_CLASS_SIZE << sizeClass;
+			if (reserve(classSize)) {
+				misses.increment();
+				return ByteBuffer.allocateDirect(classSize);
+			}
+		}
+
+		overflows.increment();
+		return ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * Return a buffer obtained by {@link #acquire(int)}. The buffer must not be used afterwards.
+	 *
+	 * @param buffer may be null
+	 */
+	public void release(ByteBuffer buffer) {
+		// Heap buffers are overflows, and not accounted for
+		if (buffer != null && buffer.isDirect()) {
+			buffer.clear();
+			freeLists[sizeClassOf(buffer.capacity())].offer(buffer);
+		}
+	}
+
+	private boolean reserve(int size) {
+		long current;
+		do {
+			current = allocatedMemory.get();
+			if (current + size > maxMemory) {
+				return false;
+			}
+		} while (!allocatedMemory.compareAndSet(current, current + size));
+		return true;
+	}
+
+	private static int sizeClassOf(int size) {
+		if (size <= MIN_CLASS_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+	}
+
+	/**
+	 * @return number of requests served from the free lists
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of requests, which required a new direct buffer
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of requests served with an unpooled heap buffer
+	 */
+	public long getOverflows() {
+		return overflows.sum();
+	}
+
+	public long getAllocatedMemory() {
+		return allocatedMemory.get();
+	}
+
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	public String getStatsString() {
+		return "hits=" + getHits() + " misses=" + getMisses() + " overflows=" + getOverflows()
+			 + " allocated=" + getAllocatedMemory() + "/" + getMaxMemory();
+	}
+
+}
@@ -0,0 +1,165 @@
+package de.einwesen.porttunnel.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Same as {@link TrafficProcessor}, but copies between the {@link SocketChannel}s
+ * of both sockets, using a direct buffer. The data never has to be copied to
+ * the java heap this way. The buffer is borrowed from a {@link BufferPool}.
+ *
+ * Both sockets must be channel based, see {@link #isApplicable(Socket, Socket)}
+ *
+ * Coalescing needs java 13, see {@link #canCoalesce()}. Before, it is skipped.
+ *
+ */
+public class ChannelTrafficProcessor extends TrafficProcessor {
+
+	/** Before java 13, the stream of a channel based socket always reports 0 available **/
+	private static final boolean COALESCING_SUPPORTED = getJavaVersion() >= 13;
+
+	private final SocketChannel sourceChannel;
+	private final SocketChannel targetChannel;
+	private final BufferPool bufferPool;
+
+	/**
+	 * @param connection the sockets belong to
+	 * @param sourceSocket
+	 * @param targetSocket
+	 * @param bufferPool
+	 * @param settings
+	 * @throws IOException
+	 */
+	public ChannelTrafficProcessor(TunnelConnection connection, Socket sourceSocket, Socket targetSocket, BufferPool bufferPool, TrafficSettings settings) throws IOException {
+		super(connection, sourceSocket, targetSocket, settings);
+		this.bufferPool = bufferPool;
+
+		if (!isApplicable(sourceSocket, targetSocket)) {
+			throw new IllegalArgumentException("Sockets are not channel based");
+		}
+
+		this.sourceChannel = sourceSocket.getChannel();
+		this.targetChannel = targetSocket.getChannel();
+	}
+
+	/**
+	 * @param sourceSocket
+	 * @param targetSocket
+	 * @return true, if both sockets can be used by this processor
+	 */
+	public static boolean isApplicable(Socket sourceSocket, Socket targetSocket) {
+		return sourceSocket.getChannel() != null && targetSocket.getChannel() != null;
+	}
+
+	/**
+	 * @return false if this JVM can not tell, whether a channel has data without
+	 * reading it. Coalescing would only add latency then, so it is skipped.
+	 */
+	public static boolean canCoalesce() {
+		return COALESCING_SUPPORTED;
+	}
+
+	private static int getJavaVersion() {
+		// "1.8" up to java 8, "9", "10", ... since
+		final String version = System.getProperty("java.specification.version", "1.8");
+		try {
+			return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+		} catch (NumberFormatException e) {
+			return 8;
+		}
+	}
+
+	/**
+	 * Same as for the streams, see {@link TrafficProcessor}
+	 *
+	 * @param buffer holding the data of the first read
+	 * @return bytes added
+	 * @throws IOException
+	 */
+	private int coalesce(ByteBuffer buffer) throws IOException {
+		final int limit = connection.getCoalesceLimit(buffer.capacity());
+		final long deadline = System.nanoTime() + connection.getCoalesceNanos();
+		final int filled = buffer.position();
+		int reads = 0;
+
+		buffer.limit(Math.max(limit, filled));
+		// Only read what is there, so the blocking channel never waits
+		while (buffer.hasRemaining() && awaitData(deadline)) {
+			final int read = sourceChannel.read(buffer);
+			if (read <= 0) {
+				break;
+			}
+			connection.countBytes(fromClient, read);
+			reads++;
+		}
+		buffer.limit(buffer.capacity());
+
+		connection.countCoalesced(reads);
+		return buffer.position() - filled;
+	}
+
+	@Override
+	protected boolean copyTraffic() {
+		final AdaptiveBufferSizer bufferSizer = new AdaptiveBufferSizer(settings);
+		ByteBuffer buffer = bufferPool.acquire(bufferSizer.getSize());
+		int readBytes = 0;
+
+		try {
+			while (true) {
+
+				try {
+					readBytes = sourceChannel.read(buffer);
+				} catch (Throwable e) {
+					logError("Error reading source", e);
+					return false;
+				}
+
+				if (readBytes < 0) {
+					return true;
+				}
+				connection.countBytes(fromClient, readBytes);
+
+				if (connection.getCoalesceNanos() > 0 && COALESCING_SUPPORTED) {
+					try {
+						readBytes += coalesce(buffer);
+					} catch (Throwable e) {
+						logError("Error reading source", e);
+						return false;
+					}
+				}
+
+				buffer.flip();
+				try {
+					connection.writeStalled(fromClient);
+					while (buffer.hasRemaining()) {
+						targetChannel.write(buffer);
+					}
+					connection.writeCompleted(fromClient);
+				} catch (Throwable e) {
+					logError("Error writing to target", e);
+					return false;
+				}
+
+				if (!pauseReading(connection.throttle(readBytes))) {
+					return false;
+				}
+
+				if (bufferSizer.update(readBytes)) {
+					// Give the old one back first, so the pool can hand it to others right away
+					bufferPool.release(buffer);
+					buffer = bufferPool.acquire(bufferSizer.getSize());
+				} else {
+					buffer.clear();
+				}
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+	}
+
+}
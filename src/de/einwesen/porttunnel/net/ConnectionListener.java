@@ -0,0 +1,18 @@
+package de.einwesen.porttunnel.net;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Notified by a {@link ConnectionProcessor} of every connection established to
+ * a target. Called on the connector thread, so it must not block.
+ */
+public interface ConnectionListener {
+
+	/**
+	 * @param connection not yet passed to the engine. Use
+	 * {@link TunnelConnection#addCloseListener(Runnable)} to learn about its end.
+	 */
+	void connectionOpened(TunnelConnection connection);
+
+}
@@ -1,116 +1,747 @@
 package de.einwesen.porttunnel.net;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.LogFactory;
 
 import de.einwesen.porttunnel.log.ConditionalStackLog;
 import de.einwesen.porttunnel.log.ConditionalStackLog.STACK_LOGLEVEL;
+import de.einwesen.porttunnel.metrics.TargetMetrics;
+import de.einwesen.porttunnel.metrics.TunnelMetrics;
 
 /**
  * Forwards traffic on a local port to an Destination port.
- * 
+ *
+ * Accepting and connecting are separated: One or more acceptor threads only
+ * accept clients, connecting to the target is done by a connector pool. If
+ * a maximum number of connections is set, further clients wait in a bounded
+ * queue, and are rejected when it is full.
+ *
+ * Accepting can be paused at runtime. The listener stays open meanwhile, so
+ * new clients wait in the backlog of the OS instead of being refused.
+ *
+ * The bandwidth of the tunnel, and of each of its connections, can be
+ * limited, see {@link RateLimiter}. Both can be changed at runtime.
+ *
+ * Connections can be closed after being idle, stuck writing or open for too
+ * long, see {@link ConnectionTimeouts}.
+ *
+ * Coalescing of small reads is off by default, as it trades latency for fewer
+ * writes, see {@link TrafficProcessor} and {@link NioTunnel}.
+ *
  * @author EinWesen
  *
  */
 public class ConnectionProcessor implements Runnable {
 
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(ConnectionProcessor.class));
+
 	private final int localPort;
-	private final String remoteHost;
-	private final int remotePort;
-	private final TunnelSocketFactory socketFactory;
-	private boolean isRunning = false;
-	
-	private ServerSocket srvSocket = null;
-	
+	private volatile Route route;
+	private final TrafficEngine trafficEngine;
+	private volatile boolean isRunning = false;
+	private volatile boolean stopRequested = false;
+
+	private int acceptorCount = 1;
+	private boolean reusePort = false;
+	private int maxConnections = 0;
+	private int pendingQueueSize = 0;
+	private int backlog = 0;
+	private SocketSettings clientSocketSettings = new SocketSettings();
+
+	private final List<ServerSocketChannel> srvChannels = new ArrayList<ServerSocketChannel>();
+	private ExecutorService connectorPool = null;
+	private Semaphore connectionPermits = null;
+	private BlockingQueue<AcceptedClient> pendingClients = null;
+
+	/**
+	 * Where new connections go. Replaced as a whole, so a connect always sees
+	 * a matching pair.
+	 */
+	private static final class Route {
+		private final BackendPool backendPool;
+		private final TunnelSocketFactory socketFactory;
+
+		Route(BackendPool backendPool, TunnelSocketFactory socketFactory) {
+			this.backendPool = backendPool;
+			this.socketFactory = socketFactory;
+		}
+	}
+
+	/**
+	 * A client, together with the time it was accepted
+	 */
+	private static final class AcceptedClient {
+		private final Socket socket;
+		private final long acceptedNanos = System.nanoTime();
+
+		AcceptedClient(Socket socket) {
+			this.socket = socket;
+		}
+
+		/**
+		 * Only built when logged
+		 */
+		@Override
+		public String toString() {
+			return String.valueOf(socket.getRemoteSocketAddress());
+		}
+	}
+
+	private static boolean inheritedChannelTaken = false;
+
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final Object idleLock = new Object();
+	private final Set<TunnelConnection> connections = ConcurrentHashMap.newKeySet();
+	private final Object pauseLock = new Object();
+	private boolean paused = false;
+	private TunnelMetrics metrics;
+	private volatile ConnectionListener connectionListener = null;
+	private RateLimiter rateLimiter = new RateLimiter(null);
+	private volatile long connectionRate = 0;
+	private volatile long connectionBurst = 0;
+	private volatile long idleTimeout = 0;
+	private volatile long writeTimeout = 0;
+	private volatile long maxLifetime = 0;
+	private volatile long coalesceNanos = 0;
+	private volatile int coalesceBytes = 0;
+
+	/**
+	 * @param localPort
+	 * @param backendPool targets to spread the connections across
+	 * @param socketFactory
+	 * @param trafficEngine
+	 */
+	public ConnectionProcessor(int localPort, BackendPool backendPool, TunnelSocketFactory socketFactory, TrafficEngine trafficEngine) {
+		this.localPort = localPort;
+		this.route = new Route(backendPool, socketFactory);
+		this.trafficEngine = trafficEngine;
+		this.metrics = new TunnelMetrics(String.valueOf(localPort));
+	}
+
+	/**
+	 * @param localPort
+	 * @param remoteHost
+	 * @param remotePort
+	 * @param socketFactory
+	 * @param trafficEngine
+	 */
+	public ConnectionProcessor(int localPort, String remoteHost, int remotePort, TunnelSocketFactory socketFactory, TrafficEngine trafficEngine) {
+		this(localPort, new BackendPool(remoteHost, remotePort), socketFactory, trafficEngine);
+	}
+
 	/**
+	 * Uses a {@link ThreadTrafficEngine}
+	 *
 	 * @param localPort
 	 * @param remoteHost
 	 * @param remotePort
 	 * @param socketFactory
 	 */
 	public ConnectionProcessor(int localPort, String remoteHost, int remotePort, TunnelSocketFactory socketFactory) {
-		this.localPort = localPort;
-		this.remoteHost = remoteHost;
-		this.remotePort = remotePort;
-		this.socketFactory = socketFactory;
+		this(localPort, remoteHost, remotePort, socketFactory, new ThreadTrafficEngine());
 	}
 
-	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(ConnectionProcessor.class));
-	
 	@Override
 	public void run() {
 
-		LOGGER.info("Fowarding traffic to: " + remoteHost + ":" + remotePort );
-		LOGGER.info("Connection Type: " + socketFactory.getConnectionTypeString() );
-		
+		LOGGER.info("Fowarding traffic to: " + route.backendPool );
+		LOGGER.info("Connection Type: " + route.socketFactory.getConnectionTypeString() );
+		LOGGER.info("Traffic Engine: " + trafficEngine.getEngineTypeString() );
+		LOGGER.info("Acceptors: " + acceptorCount + (reusePort ? " (SO_REUSEPORT)" : "")
+				  + ", max. connections: " + (maxConnections > 0 ? maxConnections + " (+" + pendingQueueSize + " pending)" : "unlimited"));
+		if (!clientSocketSettings.isDefault() || backlog > 0) {
+			LOGGER.info("Client sockets: " + clientSocketSettings + (backlog > 0 ? ", backlog " + backlog : ""));
+		}
 
 		try  {
-			srvSocket = this.socketFactory.openSocket(remoteHost, remotePort);
-			LOGGER.info("Listening on: " + srvSocket.getLocalSocketAddress() );
+			bind();
 		} catch (IOException e) {
 			LOGGER.fatal("Can not open local socket", e, STACK_LOGLEVEL.TRACE);
 		}
-			
-		if (srvSocket != null) {
+
+		if (!srvChannels.isEmpty()) {
 			isRunning = true;
-			while (isRunning) {
-				try {
-					LOGGER.trace("Waiting for connection...");
-					final Socket clientSocket = srvSocket.accept();
-					LOGGER.info("Incoming from " + clientSocket.getRemoteSocketAddress() + " . Connecting to target...");
-
-					// Try to create a tunnel to the destination
-					Socket targetSocket = null;
-					
-					try {
-						targetSocket = new Socket(remoteHost, remotePort);
-
-						//Start sending to target first
-						final TrafficProcessor source2Target = new TrafficProcessor(clientSocket, targetSocket, 1024);
-						source2Target.setSourceName(clientSocket.getRemoteSocketAddress().toString());
-						source2Target.setTargetName(remoteHost + ":" + remotePort);
-						
-						new Thread(source2Target, TrafficProcessor.class.getSimpleName() + " " + source2Target.getSourceName() + " -> " + source2Target.getTargetName()).start();
-
-						final TrafficProcessor target2source = new TrafficProcessor(targetSocket, clientSocket, 1024);
-						target2source.setTargetName(clientSocket.getRemoteSocketAddress().toString());
-						target2source.setSourceName(remoteHost + ":" + remotePort);
-
-						new Thread(target2source, TrafficProcessor.class.getSimpleName() + " " + target2source.getSourceName() + " -> " + target2source.getTargetName()).start();
-						
-						
-					} catch (Throwable e) {
-						LOGGER.error("Could not connect to target. Closing incoming connection.", e,  STACK_LOGLEVEL.DEBUG);
-						try {
-							clientSocket.close();
-						} catch (Throwable e1) {
-							LOGGER.trace("Could not close incoming connection", e1);
-						}
+			if (stopRequested) {
+				// stopRunning was called before we were running
+				isRunning = false;
+				closeServerChannels();
+			}
+
+			connectorPool = Executors.newCachedThreadPool(new NamedThreadFactory("Connector-" + localPort));
+			if (maxConnections > 0) {
+				connectionPermits = new Semaphore(maxConnections);
+				pendingClients = pendingQueueSize > 0 ? new ArrayBlockingQueue<AcceptedClient>(pendingQueueSize) : new SynchronousQueue<AcceptedClient>();
+			}
+
+			final List<Thread> acceptors = new ArrayList<Thread>(acceptorCount);
+			for (int i=1; i < acceptorCount; i++) {
+				final ServerSocketChannel srvChannel = srvChannels.get(i % srvChannels.size());
+				final Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						acceptConnections(srvChannel);
 					}
-					
-				} catch (Throwable e) {
-					LOGGER.error("Error waiting for connection", e,  STACK_LOGLEVEL.DEBUG);
+				}, "Acceptor-" + localPort + "-" + i);
+				t.start();
+				acceptors.add(t);
+			}
+
+			// The calling thread is the first acceptor
+			acceptConnections(srvChannels.get(0));
+
+			for (Thread t : acceptors) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
 				}
 			}
-			
+
+			connectorPool.shutdown();
+			rejectPendingClients();
 		}
-		
+
 		isRunning = false;
-		
+
+	}
+
+	/**
+	 * Open the local listeners. Done by {@link #run()} if not called before, but
+	 * there a failure can only be logged.
+	 *
+	 * @throws IOException if the port can not be bound
+	 */
+	public synchronized void bind() throws IOException {
+		if (!srvChannels.isEmpty()) {
+			return;
+		}
+
+		try  {
+			// With SO_REUSEPORT every acceptor gets its own listener, and the kernel balances between them
+			final int listenerCount = reusePort ? acceptorCount : 1;
+			for (int i=0; i < listenerCount; i++) {
+				srvChannels.add(openServerChannel());
+			}
+		} catch (IOException e) {
+			closeServerChannels();
+			srvChannels.clear();
+			throw e;
+		}
+		LOGGER.info("Listening on: " + srvChannels.get(0).socket().getLocalSocketAddress() );
+	}
+
+	private ServerSocketChannel openServerChannel() throws IOException {
+		final ServerSocketChannel inherited = takeInheritedChannel(localPort);
+		if (inherited != null) {
+			LOGGER.info("Using inherited listener on port " + localPort);
+			return inherited;
+		}
+
+		// Opened as channel, so accepted sockets can be used by channel based engines as well
+		final ServerSocketChannel srvChannel = ServerSocketChannel.open();
+		try {
+			if (reusePort) {
+				srvChannel.setOption(findReusePortOption(srvChannel), Boolean.TRUE);
+			}
+			// Buffers above 64k need TCP window scaling, which is negotiated during the handshake
+			if (clientSocketSettings.getReceiveBufferSize() > 0) {
+				srvChannel.setOption(StandardSocketOptions.SO_RCVBUF, clientSocketSettings.getReceiveBufferSize());
+			}
+			srvChannel.bind(new InetSocketAddress(localPort), backlog);
+		} catch (IOException e) {
+			srvChannel.close();
+			throw e;
+		}
+		return srvChannel;
+	}
+
+	/**
+	 * A listener passed in by the parent process (e.g. socket activation by
+	 * systemd or inetd with <i>wait</i>), lets a new process take over the port
+	 * without it ever being closed. It is handed out once, to the tunnel using its port.
+	 *
+	 * @param port
+	 * @return null if there is none for this port
+	 */
+	private static ServerSocketChannel takeInheritedChannel(int port) {
+		synchronized (ConnectionProcessor.class) {
+			if (inheritedChannelTaken) {
+				return null;
+			}
+			try {
+				final Channel channel = System.inheritedChannel();
+				if (channel instanceof ServerSocketChannel && ((ServerSocketChannel)channel).socket().getLocalPort() == port) {
+					inheritedChannelTaken = true;
+					return (ServerSocketChannel)channel;
+				}
+			} catch (IOException | SecurityException e) {
+				LOGGER.debug("Inherited channel not available: " + e);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * SO_REUSEPORT is not part of {@link java.net.StandardSocketOptions} before java 9,
+	 * and not supported on all platforms. So look it up by name.
+	 */
+	private static SocketOption<Boolean> findReusePortOption(ServerSocketChannel srvChannel) throws IOException {
+		final SocketOption<Boolean> option = SocketSettings.findOption(srvChannel, "SO_REUSEPORT", Boolean.class);
+		if (option == null) {
+			throw new IOException("SO_REUSEPORT is not supported on this platform");
+		}
+		return option;
+	}
+
+	private void acceptConnections(ServerSocketChannel srvChannel) {
+		while (isRunning) {
+			try {
+				LOGGER.trace("Waiting for connection...");
+				final AcceptedClient client = new AcceptedClient(srvChannel.accept().socket());
+				// Paused while waiting for the client, so hold it back
+				awaitResume();
+				if (!isRunning) {
+					closeQuietly(client.socket);
+					break;
+				}
+				metrics.connectionAccepted();
+				LOGGER.info("Incoming from {} . Connecting to target...", client);
+				admit(client);
+			} catch (Throwable e) {
+				if (isRunning) {
+					LOGGER.error("Error waiting for connection", e,  STACK_LOGLEVEL.DEBUG);
+				}
+			}
+		}
+	}
+
+	private void awaitResume() throws InterruptedException {
+		synchronized (pauseLock) {
+			while (paused && isRunning) {
+				pauseLock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Hand the client to the connector pool, or queue it if the limit is reached.
+	 *
+	 * @param client
+	 */
+	private void admit(AcceptedClient client) {
+		if (connectionPermits == null || connectionPermits.tryAcquire()) {
+			startConnecting(client);
+		} else if (pendingClients.offer(client)) {
+			LOGGER.debug("Connection limit reached, queued {}", client);
+			// A connection may have ended since tryAcquire
+			drainPendingClients();
+		} else {
+			LOGGER.warn("Connection limit reached, rejecting {}", client);
+			metrics.connectionRejected();
+			closeQuietly(client.socket);
+		}
+	}
+
+	/**
+	 * Start queued clients, as long as permits are available
+	 */
+	private void drainPendingClients() {
+		while (!pendingClients.isEmpty() && connectionPermits.tryAcquire()) {
+			final AcceptedClient client = pendingClients.poll();
+			if (client == null) {
+				connectionPermits.release();
+			} else {
+				startConnecting(client);
+			}
+		}
+	}
+
+	private void rejectPendingClients() {
+		if (pendingClients != null) {
+			AcceptedClient client;
+			while ((client = pendingClients.poll()) != null) {
+				closeQuietly(client.socket);
+			}
+		}
+	}
+
+	private void startConnecting(final AcceptedClient client) {
+		activeConnections.incrementAndGet();
+		try {
+			connectorPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					connect(client);
+				}
+			});
+		} catch (Throwable e) {
+			LOGGER.error("Could not start connecting. Closing incoming connection.", e,  STACK_LOGLEVEL.DEBUG);
+			closeQuietly(client.socket);
+			connectionEnded();
+		}
+	}
+
+	private void connect(AcceptedClient client) {
+		// Try to create a tunnel to the destination
+		final Socket clientSocket = client.socket;
+		Socket targetSocket = null;
+		byte[] initialData = null;
+		TunnelConnection connection = null;
+		final Route route = this.route;
+		final BackendPool backendPool = route.backendPool;
+
+		try {
+			clientSocketSettings.apply(clientSocket);
+
+			// Try the backends one after the other, until one can be connected
+			final Set<Backend> tried = new HashSet<Backend>();
+			Backend candidate = null;
+			while (targetSocket == null) {
+				candidate = backendPool.choose(tried);
+				tried.add(candidate);
+				final long start = System.nanoTime();
+				try {
+					targetSocket = route.socketFactory.openSocket(candidate.getHost(), candidate.getPort());
+					initialData = route.socketFactory.takeInitialData(targetSocket);
+					final long connectNanos = System.nanoTime() - start;
+					backendPool.reportSuccess(candidate, connectNanos);
+					metrics.getTarget(candidate.toString()).connectSucceeded(connectNanos);
+				} catch (IOException e) {
+					backendPool.reportFailure(candidate);
+					metrics.getTarget(candidate.toString()).connectFailed();
+					if (tried.size() >= backendPool.size()) {
+						throw e;
+					}
+					LOGGER.warn("Could not connect to " + candidate + ", trying next backend: " + e);
+				}
+			}
+			final Backend backend = candidate;
+
+			final TunnelConnection created = new TunnelConnection(clientSocket, targetSocket, clientSocket.getRemoteSocketAddress().toString(), backend.toString());
+			backend.connectionStarted();
+			connections.add(created);
+			created.addCloseListener(new Runnable() {
+				@Override
+				public void run() {
+					connections.remove(created);
+					backend.connectionEnded();
+					connectionEnded();
+				}
+			});
+			// From here on, closing the connection releases everything
+			connection = created;
+
+			final TargetMetrics targetMetrics = metrics.getTarget(backend.toString());
+			connection.setMetrics(metrics.connectionOpened(targetMetrics, client.acceptedNanos));
+			connection.setRateLimiter(connectionRateLimiter());
+			connection.setCoalescing(coalesceNanos, coalesceBytes);
+
+			ConnectionTimeouts.watch(connection, metrics, idleTimeout, writeTimeout, maxLifetime);
+
+			final ConnectionListener listener = this.connectionListener;
+			if (listener != null) {
+				listener.connectionOpened(connection);
+			}
+
+			if (initialData != null) {
+				// Read by the socket factory already, so it must go out before the engine takes over
+				clientSocket.getOutputStream().write(initialData);
+				connection.countBytes(false, initialData.length);
+			}
+
+			this.trafficEngine.forward(connection);
+
+		} catch (Throwable e) {
+			LOGGER.error("Could not connect to target. Closing incoming connection.", e,  STACK_LOGLEVEL.DEBUG);
+			if (connection != null) {
+				connection.close();
+			} else {
+				// Never became active, so it counts as failed even if the target was connected
+				metrics.connectionFailed();
+				if (targetSocket != null) {
+					closeQuietly(targetSocket);
+				}
+				closeQuietly(clientSocket);
+				connectionEnded();
+			}
+		}
+	}
+
+	private void connectionEnded() {
+		if (activeConnections.decrementAndGet() == 0) {
+			synchronized (idleLock) {
+				idleLock.notifyAll();
+			}
+		}
+		if (connectionPermits != null) {
+			connectionPermits.release();
+			drainPendingClients();
+		}
 	}
-	
+
+	private static void closeQuietly(Socket s) {
+		try {
+			s.close();
+		} catch (Throwable e) {
+			LOGGER.trace("Could not close connection", e);
+		}
+	}
+
 	public void stopRunning() {
+		stopRequested = true;
 		if (isRunning) {
+			isRunning = false;
+			closeServerChannels();
+		}
+		synchronized (pauseLock) {
+			pauseLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Stop or resume accepting new clients. A client accepted meanwhile by an
+	 * acceptor is held back until resumed.
+	 *
+	 * @param paused
+	 */
+	public void setPaused(boolean paused) {
+		synchronized (pauseLock) {
+			if (this.paused != paused) {
+				this.paused = paused;
+				LOGGER.info((paused ? "Paused" : "Resumed") + " accepting on " + localPort);
+			}
+			pauseLock.notifyAll();
+		}
+	}
+
+	public boolean isPaused() {
+		synchronized (pauseLock) {
+			return paused;
+		}
+	}
+
+	/**
+	 * Close all established connections, the listener is not affected
+	 *
+	 * @return number of connections closed
+	 */
+	public int closeAllConnections() {
+		int count = 0;
+		for (TunnelConnection connection : getConnections()) {
+			connection.close();
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return snapshot of the established connections
+	 */
+	public List<TunnelConnection> getConnections() {
+		return new ArrayList<TunnelConnection>(connections);
+	}
+
+	/**
+	 * @param connectionListener notified of every connection, before it is passed to the engine. null to remove it.
+	 */
+	public void setConnectionListener(ConnectionListener connectionListener) {
+		this.connectionListener = connectionListener;
+	}
+
+	private void closeServerChannels() {
+		for (ServerSocketChannel srvChannel : srvChannels) {
 			try {
-				this.srvSocket.close();
+				srvChannel.close();
 			} catch (IOException e) {
 				LOGGER.trace("Could not close server connection", e);
-			}			
-			isRunning = false;
+			}
+		}
+	}
+
+	/**
+	 * @param acceptorCount number of threads accepting clients. Default is 1.
+	 */
+	public void setAcceptorCount(int acceptorCount) {
+		this.acceptorCount = Math.max(1, acceptorCount);
+	}
+
+	/**
+	 * @param reusePort if true, every acceptor has its own listener bound with SO_REUSEPORT
+	 */
+	public void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * @param maxConnections limit of concurrent connections, 0 for unlimited
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @param backlog of the listener, 0 for the default of the JVM
+	 */
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	/**
+	 * @param clientSocketSettings applied to every accepted client
+	 */
+	public void setClientSocketSettings(SocketSettings clientSocketSettings) {
+		this.clientSocketSettings = clientSocketSettings;
+	}
+
+	/**
+	 * @param pendingQueueSize clients waiting for a free connection, when the limit is reached
+	 */
+	public void setPendingQueueSize(int pendingQueueSize) {
+		this.pendingQueueSize = pendingQueueSize;
+	}
+
+	/**
+	 * Wait until all connections have ended. Should be called after {@link #stopRunning()},
+	 * otherwise new connections may keep coming.
+	 *
+	 * @param timeout in ms
+	 * @return true if no connection is left
+	 * @throws InterruptedException
+	 */
+	public boolean awaitIdle(long timeout) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		synchronized (idleLock) {
+			long remaining;
+			while (activeConnections.get() > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+				TimeUnit.NANOSECONDS.timedWait(idleLock, remaining);
+			}
 		}
+		return activeConnections.get() <= 0;
+	}
+
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	/**
+	 * Send new connections to other targets. Established connections are not affected.
+	 *
+	 * @param backendPool
+	 * @param socketFactory
+	 */
+	public void setTarget(BackendPool backendPool, TunnelSocketFactory socketFactory) {
+		this.route = new Route(backendPool, socketFactory);
+		LOGGER.info("Fowarding new connections on " + localPort + " to: " + backendPool + " / " + socketFactory.getConnectionTypeString());
+	}
+
+	public BackendPool getBackendPool() {
+		return route.backendPool;
+	}
+
+	public long getRejectedConnections() {
+		return metrics.getRejected();
+	}
+
+	/**
+	 * The limiter of the tunnel is always used, so changing it also slows down
+	 * the established connections.
+	 *
+	 * @return limiter of a new connection
+	 */
+	private RateLimiter connectionRateLimiter() {
+		final long rate = this.connectionRate;
+		return rate > 0 ? new RateLimiter(rateLimiter, rate, connectionBurst) : rateLimiter;
+	}
+
+	/**
+	 * Must be called before {@link #run()}
+	 *
+	 * @param rateLimiter bandwidth of the whole tunnel, its parent may limit all tunnels together
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * @return bandwidth of the whole tunnel
+	 */
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Only applies to connections established afterwards
+	 *
+	 * @param bytesPerSecond bandwidth of each connection, 0 for unlimited
+	 * @param burst in bytes, 0 for the default
+	 */
+	public void setConnectionRate(long bytesPerSecond, long burst) {
+		this.connectionBurst = burst;
+		this.connectionRate = Math.max(0, bytesPerSecond);
+	}
+
+	/**
+	 * @return bandwidth of each connection in bytes per second, 0 if unlimited
+	 */
+	public long getConnectionRate() {
+		return connectionRate;
+	}
+
+	/**
+	 * Only apply to connections established afterwards
+	 *
+	 * @param idleTimeout in ms, close a connection if nothing was read in either direction for this long, 0 for none
+	 * @param writeTimeout in ms, close a connection if its data could not be written for this long, 0 for none
+	 * @param maxLifetime in ms, close a connection this long after it was established, 0 for none
+	 */
+	public void setTimeouts(long idleTimeout, long writeTimeout, long maxLifetime) {
+		this.idleTimeout = idleTimeout;
+		this.writeTimeout = writeTimeout;
+		this.maxLifetime = maxLifetime;
+	}
+
+	/**
+	 * Only apply to connections established afterwards
+	 *
+	 * @param coalesceNanos time a direction waits for more data after a read, 0 to write every read at once
+	 * @param coalesceBytes write at once when this much is gathered, 0 for a full buffer
+	 */
+	public void setCoalescing(long coalesceNanos, int coalesceBytes) {
+		this.coalesceNanos = coalesceNanos;
+		this.coalesceBytes = coalesceBytes;
+	}
+
+	/**
+	 * Must be called before {@link #run()}
+	 *
+	 * @param metrics counters of this tunnel, may be shared with a previous processor of the same tunnel
+	 */
+	public void setMetrics(TunnelMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public TunnelMetrics getMetrics() {
+		return metrics;
 	}
 
 }
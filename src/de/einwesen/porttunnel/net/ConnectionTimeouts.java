@@ -0,0 +1,130 @@
+package de.einwesen.porttunnel.net;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+import de.einwesen.porttunnel.metrics.TunnelMetrics;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Closes a connection, which did not read anything for too long, could not get
+ * rid of its data for too long, or reached its maximum lifetime.
+ *
+ * Reads and writes only update timestamps of the {@link TunnelConnection}. A
+ * single timeout of the shared {@link TimingWheel} is pending per connection:
+ * When it fires, the timestamps are checked, and it is scheduled again for the
+ * earliest time one of the limits could be reached.
+ */
+final class ConnectionTimeouts implements Runnable {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(ConnectionTimeouts.class));
+
+	private final TunnelConnection connection;
+	private final TimingWheel wheel;
+	private final TunnelMetrics metrics;
+	private final long idleNanos;
+	private final long writeNanos;
+	private final long lifetimeNanos;
+	private final long startNanos = System.nanoTime();
+	private volatile TimingWheel.Timeout timeout = null;
+
+	private ConnectionTimeouts(TunnelConnection connection, TimingWheel wheel, TunnelMetrics metrics, long idleMillis, long writeMillis, long lifetimeMillis) {
+		this.connection = connection;
+		this.wheel = wheel;
+		this.metrics = metrics;
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, idleMillis));
+		this.writeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, writeMillis));
+		this.lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, lifetimeMillis));
+	}
+
+	/**
+	 * Watch a connection with the shared {@link TimingWheel}, until it is closed.
+	 * Does nothing if no timeout is set.
+	 *
+	 * @param connection
+	 * @param metrics counting the timeouts, may be null
+	 * @param idleMillis close if nothing was read in either direction for this long, 0 for none
+	 * @param writeMillis close if data is waiting to be written for this long, 0 for none
+	 * @param lifetimeMillis close this long after being established, 0 for none
+	 */
+	static void watch(TunnelConnection connection, TunnelMetrics metrics, long idleMillis, long writeMillis, long lifetimeMillis) {
+		if (idleMillis <= 0 && writeMillis <= 0 && lifetimeMillis <= 0) {
+			return;
+		}
+
+		final ConnectionTimeouts timeouts = new ConnectionTimeouts(connection, TimingWheel.getInstance(), metrics, idleMillis, writeMillis, lifetimeMillis);
+		timeouts.schedule(timeouts.nextCheck(timeouts.startNanos));
+		connection.addCloseListener(new Runnable() {
+			@Override
+			public void run() {
+				timeouts.timeout.cancel();
+			}
+		});
+	}
+
+	/**
+	 * Check the connection, on the wheel thread
+	 */
+	@Override
+	public void run() {
+		if (connection.isClosed()) {
+			return;
+		}
+
+		final long now = System.nanoTime();
+		if (lifetimeNanos > 0 && now - (startNanos + lifetimeNanos) >= 0) {
+			expire("Maximum lifetime reached");
+		} else if (idleNanos > 0 && now - (connection.getLastReadNanos() + idleNanos) >= 0) {
+			expire("Idle timeout");
+		} else if (writeNanos > 0 && isWriteStalled(now)) {
+			expire("Write timeout");
+		} else {
+			schedule(nextCheck(now));
+		}
+	}
+
+	private boolean isWriteStalled(long now) {
+		final long stalledSince = connection.getWriteStalledNanos();
+		return stalledSince != 0 && now - (stalledSince + writeNanos) >= 0;
+	}
+
+	/**
+	 * @param now
+	 * @return nanos until the earliest time a limit could be reached
+	 */
+	private long nextCheck(long now) {
+		long next = Long.MAX_VALUE;
+		if (lifetimeNanos > 0) {
+			next = Math.min(next, startNanos + lifetimeNanos - now);
+		}
+		if (idleNanos > 0) {
+			next = Math.min(next, connection.getLastReadNanos() + idleNanos - now);
+		}
+		if (writeNanos > 0) {
+			final long stalledSince = connection.getWriteStalledNanos();
+			next = Math.min(next, stalledSince != 0 ? stalledSince + writeNanos - now : writeNanos);
+		}
+		return next;
+	}
+
+	private void schedule(long delayNanos) {
+		timeout = wheel.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+		// The close listener may have cancelled the previous one meanwhile
+		if (connection.isClosed()) {
+			timeout.cancel();
+		}
+	}
+
+	private void expire(String reason) {
+		LOGGER.info("{}{}, closing", connection.getLogPrefix(), reason);
+		if (metrics != null) {
+			metrics.connectionTimedOut();
+		}
+		connection.close();
+	}
+
+}
@@ -0,0 +1,28 @@
+package de.einwesen.porttunnel.net;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Creates daemon threads named <i>prefix-n</i>, so pool threads can be told apart in thread dumps.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	private final String prefix;
+	private final AtomicInteger counter = new AtomicInteger();
+
+	public NamedThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		final Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+
+}
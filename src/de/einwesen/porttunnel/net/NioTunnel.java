@@ -0,0 +1,336 @@
+package de.einwesen.porttunnel.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+import de.einwesen.porttunnel.log.ConditionalStackLog.STACK_LOGLEVEL;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * State of one non-blocking client <-> target connection. Only ever touched by
+ * the {@link SelectorLoop} it is registered with.
+ *
+ * A direction exceeding the bandwidth of the connection drops its interest in
+ * reading, until a timer of the loop resumes it.
+ * 
+ * If the connection allows coalescing, a direction holds back a partly filled
+ * buffer for the latency budget, so reads arriving meanwhile go out with the
+ * same write. A timer of the loop flushes it when the budget is spent.
+ * 
+ * A direction holds a buffer only while it is busy. It is taken from the
+ * {@link BufferPool} on the first read, and given back once the direction was
+ * idle for the quiet period of the {@link AdaptiveBufferSizer}. The next read
+ * starts again with the minimum size, so idle connections hold no buffers.
+ */
+class NioTunnel {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(NioTunnel.class));
+
+	/**
+	 * One direction of the tunnel. Data is read from <i>src</i> into the buffer,
+	 * and written to <i>dst</i> as far as it accepts it.
+	 * 
+	 * The buffer is only resized or released while it is empty, and is null
+	 * while the direction is idle.
+	 */
+	private final class Pipe implements Runnable {
+		private final SocketChannel src;
+		private final SocketChannel dst;
+		private final BufferPool bufferPool;
+		private final TunnelConnection connection;
+		private final boolean fromClient;
+		private final AdaptiveBufferSizer bufferSizer;
+		private ByteBuffer buffer;
+		private int bufferSize;
+		private boolean eof = false;
+		private boolean done = false;
+		private boolean throttled = false;
+		private boolean coalescing = false;
+		private boolean releaseScheduled = false;
+		private long lastReadNanos = System.nanoTime();
+		private final Runnable releaseTask = new Runnable() {
+			@Override
+			public void run() {
+				releaseIfIdle();
+			}
+		};
+		private final Runnable flushTask = new Runnable() {
+			@Override
+			public void run() {
+				NioTunnel.this.flushCoalesced(Pipe.this);
+			}
+		};
+
+		Pipe(SocketChannel src, SocketChannel dst, BufferPool bufferPool, TrafficSettings settings, TunnelConnection connection, boolean fromClient) {
+			this.src = src;
+			this.dst = dst;
+			this.bufferPool = bufferPool;
+			this.connection = connection;
+			this.fromClient = fromClient;
+			this.bufferSizer = new AdaptiveBufferSizer(settings);
+			this.bufferSize = bufferSizer.getSize();
+		}
+
+		void read() throws IOException {
+			fill();
+			if (!eof && holdBack()) {
+				return;
+			}
+			write();
+		}
+
+		/**
+		 * The latency budget is spent: Take along what arrived meanwhile, and write it
+		 */
+		void flushCoalesced() throws IOException {
+			if (!throttled && buffer.hasRemaining()) {
+				fill();
+			}
+			write();
+		}
+
+		private void fill() throws IOException {
+			if (buffer == null) {
+				buffer = bufferPool.acquire(bufferSize);
+			}
+			final int readBytes = eof ? 0 : src.read(buffer);
+			if (readBytes < 0) {
+				eof = true;
+			} else if (readBytes > 0) {
+				connection.countBytes(fromClient, readBytes);
+				bufferSizer.update(readBytes);
+				lastReadNanos = System.nanoTime();
+
+				final long pause = connection.throttle(readBytes);
+				if (pause > 0) {
+					throttled = true;
+					loop.schedule(this, pause);
+				}
+
+				if (coalescing) {
+					connection.countCoalesced(1);
+				}
+			}
+		}
+
+		private void write() throws IOException {
+			flush();
+
+			if (buffer.position() == 0 && bufferSize != bufferSizer.getSize()) {
+				bufferPool.release(buffer);
+				bufferSize = bufferSizer.getSize();
+				buffer = bufferPool.acquire(bufferSize);
+			}
+			if (buffer.position() == 0 && !releaseScheduled) {
+				releaseScheduled = true;
+				loop.schedule(releaseTask, AdaptiveBufferSizer.QUIET_NANOS);
+			}
+		}
+
+		/**
+		 * Give the empty buffer back to the pool, if nothing was read for the quiet
+		 * period. Otherwise check again, when it would have passed.
+		 */
+		private void releaseIfIdle() {
+			releaseScheduled = false;
+			if (closed || eof || buffer == null || buffer.position() > 0) {
+				// A buffer still holding data is checked again, once it is written
+				return;
+			}
+
+			final long idleNanos = System.nanoTime() - lastReadNanos;
+			if (idleNanos >= AdaptiveBufferSizer.QUIET_NANOS) {
+				bufferPool.release(buffer);
+				buffer = null;
+				bufferSize = bufferSizer.getMinSize();
+			} else {
+				releaseScheduled = true;
+				loop.schedule(releaseTask, AdaptiveBufferSizer.QUIET_NANOS - idleNanos);
+			}
+		}
+
+		/**
+		 * @return true if the buffer waits for more data, instead of being written now
+		 */
+		private boolean holdBack() {
+			final long coalesceNanos = connection.getCoalesceNanos();
+			if (coalesceNanos <= 0 || buffer.position() == 0 || buffer.position() >= connection.getCoalesceLimit(buffer.capacity())) {
+				return false;
+			}
+			if (!coalescing) {
+				coalescing = true;
+				loop.schedule(flushTask, coalesceNanos);
+			}
+			return true;
+		}
+
+		void flush() throws IOException {
+			// A timer still pending may flush a later batch early, which is harmless
+			coalescing = false;
+			buffer.flip();
+			final int written = dst.write(buffer);
+			if (written > 0 || !buffer.hasRemaining()) {
+				connection.writeCompleted(fromClient);
+			}
+			if (buffer.hasRemaining()) {
+				connection.writeStalled(fromClient);
+			}
+			buffer.compact();
+
+			if (eof && !done && buffer.position() == 0) {
+				// Pass on the EOF, the other direction may still be busy
+				dst.shutdownOutput();
+				done = true;
+			}
+		}
+
+		int srcInterest() {
+			return !eof && !throttled && (buffer == null || buffer.hasRemaining()) ? SelectionKey.OP_READ : 0;
+		}
+
+		/**
+		 * Resume reading, after being throttled
+		 */
+		@Override
+		public void run() {
+			throttled = false;
+			// The keys are cancelled at once, if the sockets are closed by another thread
+			if (!closed && clientKey.isValid() && targetKey.isValid()) {
+				updateInterest();
+			}
+		}
+
+		int dstInterest() {
+			return buffer != null && buffer.position() > 0 && !coalescing ? SelectionKey.OP_WRITE : 0;
+		}
+
+		void release() {
+			bufferPool.release(buffer);
+			buffer = null;
+		}
+	}
+
+	private final TunnelConnection connection;
+	private final SocketChannel clientChannel;
+	private final SocketChannel targetChannel;
+	private final String logPrefix;
+
+	private SelectorLoop loop = null;
+	private Pipe upstream = null;
+	private Pipe downstream = null;
+	private SelectionKey clientKey = null;
+	private SelectionKey targetKey = null;
+	private boolean closed = false;
+
+	/**
+	 * @param connection both sockets must be channel based
+	 */
+	NioTunnel(TunnelConnection connection) {
+		this.connection = connection;
+		this.clientChannel = connection.getClientSocket().getChannel();
+		this.targetChannel = connection.getTargetSocket().getChannel();
+		this.logPrefix = connection.getLogPrefix();
+	}
+
+	void register(SelectorLoop loop, Selector selector, BufferPool bufferPool, TrafficSettings settings) throws IOException {
+		this.loop = loop;
+		clientChannel.configureBlocking(false);
+		targetChannel.configureBlocking(false);
+
+		upstream = new Pipe(clientChannel, targetChannel, bufferPool, settings, connection, true);
+		downstream = new Pipe(targetChannel, clientChannel, bufferPool, settings, connection, false);
+
+		clientKey = clientChannel.register(selector, 0, this);
+		targetKey = targetChannel.register(selector, 0, this);
+		updateInterest();
+
+		LOGGER.debug("{}running ({}) ... ", this.logPrefix, settings);
+	}
+
+	void handle(SelectionKey key) {
+		final SelectableChannel channel = key.channel();
+		try {
+			if (key.isReadable()) {
+				(channel == clientChannel ? upstream : downstream).read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				(channel == clientChannel ? downstream : upstream).flush();
+			}
+
+			if (upstream.done && downstream.done) {
+				close();
+			} else {
+				updateInterest();
+			}
+		} catch (Throwable e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Write what a direction gathered, once its latency budget is spent
+	 *
+	 * @param pipe
+	 */
+	private void flushCoalesced(Pipe pipe) {
+		// The keys are cancelled at once, if the sockets are closed by another thread
+		if (closed || !pipe.coalescing || !clientKey.isValid() || !targetKey.isValid()) {
+			return;
+		}
+		try {
+			pipe.flushCoalesced();
+			if (upstream.done && downstream.done) {
+				close();
+			} else {
+				updateInterest();
+			}
+		} catch (Throwable e) {
+			failed(e);
+		}
+	}
+
+	private void failed(Throwable e) {
+		if (connection.isClosed()) {
+			LOGGER.trace("{}Closed while forwarding", this.logPrefix, e);
+		} else {
+			LOGGER.error("{}Error forwarding data", this.logPrefix, e, STACK_LOGLEVEL.TRACE);
+		}
+		close();
+	}
+
+	private void updateInterest() {
+		clientKey.interestOps(upstream.srcInterest() | downstream.dstInterest());
+		targetKey.interestOps(downstream.srcInterest() | upstream.dstInterest());
+	}
+
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		connection.close();
+		if (upstream != null) {
+			upstream.release();
+			downstream.release();
+		}
+		LOGGER.info("{}Stopped", this.logPrefix);
+	}
+
+	TunnelConnection getConnection() {
+		return connection;
+	}
+
+	String getLogPrefix() {
+		return logPrefix;
+	}
+
+}
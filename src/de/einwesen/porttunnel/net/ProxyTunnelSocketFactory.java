@@ -2,62 +2,228 @@ package de.einwesen.porttunnel.net;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.http.HttpException;
-import org.apache.http.HttpHost;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.impl.client.ProxyClient;
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
 
 /**
- * 
+ *
  * @author EinWesen
- * 
+ *
  * Creates a socket, whichs is tunneled through an (HTTPS)proxy
+ *
+ * The proxy is connected by a {@link TargetConnector}, so its
+ * {@link SocketSettings} are applied before connecting. The CONNECT handshake
+ * is done non-blocking on the same channel, within the connect timeout.
+ * Credentials are sent preemptively with basic auth. Data the target sends
+ * right away may arrive together with the response, it is kept for
+ * {@link #takeInitialData(Socket)}. The socket returned is channel based, so
+ * non-blocking engines can use it as well.
  */
 public class ProxyTunnelSocketFactory implements TunnelSocketFactory {
-	
-	private HttpHost proxyHost = null;
-	private UsernamePasswordCredentials proxyCredentials = null;
-    private ProxyClient proxyClient = null;
-	
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(ProxyTunnelSocketFactory.class));
+
+	/** Response headers of the proxy larger than this are refused **/
+	public static final int MAX_RESPONSE_SIZE = 8192;
+	/** Time in ms for the handshake, if there is no connect timeout **/
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+	private static final byte[] END_OF_HEADERS = {'\r', '\n', '\r', '\n'};
+
+	private final String proxyHost;
+	private final int proxyPort;
+	private final String proxyAuthorization;
+	private final TargetConnector connector;
+	/** Data read behind the response, until the connection takes it. Sockets never taken are dropped by the GC **/
+	private final Map<Socket, byte[]> initialData = Collections.synchronizedMap(new WeakHashMap<Socket, byte[]>());
+
 	/**
 	 * @param proxyHost
 	 * @param proxyPort
 	 * @param proxyUser
 	 * @param proxyPassword
+	 * @param connector used to connect the proxy, its timeout also applies to the handshake (or {@link #DEFAULT_HANDSHAKE_TIMEOUT} if it has none)
 	 */
-	public ProxyTunnelSocketFactory(String proxyHost, int proxyPort, String proxyUser, String proxyPassword) {
-		this.proxyHost = new HttpHost(proxyHost, proxyPort);
-		
+	public ProxyTunnelSocketFactory(String proxyHost, int proxyPort, String proxyUser, String proxyPassword, TargetConnector connector) {
+		this.proxyHost = proxyHost;
+		this.proxyPort = proxyPort;
+		this.connector = connector;
+
 		if (proxyUser != null || proxyPassword != null) {
-			this.proxyCredentials = new UsernamePasswordCredentials(proxyUser, proxyPassword);			
+			final String credentials = (proxyUser != null ? proxyUser : "") + ":" + (proxyPassword != null ? proxyPassword : "");
+			this.proxyAuthorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+		} else {
+			this.proxyAuthorization = null;
 		}
-		
-		this.proxyClient = new ProxyClient();
 	}
 
 	/**
 	 * @param proxyHost
 	 * @param proxyPort
-	 */	
+	 * @param proxyUser
+	 * @param proxyPassword
+	 * @param connectTimeout in ms to the proxy, 0 for the OS default
+	 * @param socketSettings applied to the sockets to the target
+	 */
+	public ProxyTunnelSocketFactory(String proxyHost, int proxyPort, String proxyUser, String proxyPassword, int connectTimeout, SocketSettings socketSettings) {
+		this(proxyHost, proxyPort, proxyUser, proxyPassword, new TargetConnector(connectTimeout, TargetConnector.DEFAULT_STAGGER_DELAY, socketSettings));
+	}
+
+	/**
+	 * @param proxyHost
+	 * @param proxyPort
+	 * @param proxyUser
+	 * @param proxyPassword
+	 * @param connectTimeout in ms to the proxy, 0 for the OS default
+	 */
+	public ProxyTunnelSocketFactory(String proxyHost, int proxyPort, String proxyUser, String proxyPassword, int connectTimeout) {
+		this(proxyHost, proxyPort, proxyUser, proxyPassword, connectTimeout, new SocketSettings());
+	}
+
+	/**
+	 * @param proxyHost
+	 * @param proxyPort
+	 * @param proxyUser
+	 * @param proxyPassword
+	 */
+	public ProxyTunnelSocketFactory(String proxyHost, int proxyPort, String proxyUser, String proxyPassword) {
+		this(proxyHost, proxyPort, proxyUser, proxyPassword, 0);
+	}
+
+	/**
+	 * @param proxyHost
+	 * @param proxyPort
+	 */
 	public ProxyTunnelSocketFactory(String proxyHost, int proxyPort) {
 		this(proxyHost, proxyPort, null, null);
 	}
 
-	
+
 	@Override
 	public Socket openSocket(String host, int port) throws IOException {
-		final HttpHost target = new HttpHost(host, port);
+		final SocketChannel channel = connector.connect(proxyHost, proxyPort);
+		final byte[] surplus;
+		try {
+			surplus = handshake(channel, host, port);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		if (surplus != null) {
+			initialData.put(channel.socket(), surplus);
+		}
+		return channel.socket();
+	}
+
+	@Override
+	public byte[] takeInitialData(Socket socket) {
+		return initialData.remove(socket);
+	}
+
+	/**
+	 * Send the CONNECT request, and read the response up to the end of its headers
+	 *
+	 * @param channel connected to the proxy, in blocking mode
+	 * @param host
+	 * @param port
+	 * @return data of the target, read together with the response. null if there was none.
+	 * @throws IOException if the proxy refused, or did not answer in time
+	 */
+	private byte[] handshake(SocketChannel channel, String host, int port) throws IOException {
+		// Without a limit, a proxy accepting but never answering would block the connector forever
+		final int timeout = connector.getConnectTimeout() > 0 ? connector.getConnectTimeout() : DEFAULT_HANDSHAKE_TIMEOUT;
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		final ByteBuffer request = ByteBuffer.wrap(createRequest(host, port).getBytes(StandardCharsets.ISO_8859_1));
+		final ByteBuffer response = ByteBuffer.allocate(MAX_RESPONSE_SIZE);
+		int matched = 0;
+		int headersEnd = 0;
+
+		channel.configureBlocking(false);
+		final Selector selector = Selector.open();
 		try {
-			return this.proxyClient.tunnel(this.proxyHost, target, this.proxyCredentials);
-		} catch (HttpException e) {
-			throw new IOException("Unable to create socket. Reason: " + e.getMessage(), e);
+			final SelectionKey key = channel.register(selector, SelectionKey.OP_WRITE);
+			while (matched < END_OF_HEADERS.length) {
+				if (request.hasRemaining()) {
+					channel.write(request);
+					key.interestOps(request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+				} else {
+					if (!response.hasRemaining()) {
+						throw new IOException("Response of proxy " + getProxyString() + " exceeds " + MAX_RESPONSE_SIZE + " bytes");
+					}
+					// Anything read beyond the headers belongs to the target
+					final int start = response.position();
+					if (channel.read(response) < 0) {
+						throw new IOException("Proxy " + getProxyString() + " closed the connection during CONNECT");
+					}
+					for (int i=start; i < response.position() && matched < END_OF_HEADERS.length; i++) {
+						matched = response.get(i) == END_OF_HEADERS[matched] ? matched + 1 : (response.get(i) == END_OF_HEADERS[0] ? 1 : 0);
+						headersEnd = i + 1;
+					}
+					if (response.position() > start) {
+						continue;
+					}
+				}
+
+				if (request.hasRemaining() || matched < END_OF_HEADERS.length) {
+					final long now = System.nanoTime();
+					if (now >= deadline) {
+						throw new SocketTimeoutException("CONNECT to " + host + ":" + port + " through " + getProxyString() + " timed out after " + timeout + "ms");
+					}
+					selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now)));
+					selector.selectedKeys().clear();
+				}
+			}
+		} finally {
+			// Deregisters the channel, so it can be switched back to blocking
+			selector.close();
+		}
+		channel.configureBlocking(true);
+
+		final String headers = new String(response.array(), 0, headersEnd, StandardCharsets.ISO_8859_1);
+		final String statusLine = headers.substring(0, headers.indexOf("\r\n"));
+		final String[] status = statusLine.split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/") || !status[1].startsWith("2")) {
+			throw new IOException("Proxy " + getProxyString() + " refused CONNECT to " + host + ":" + port + ": " + statusLine);
 		}
+		LOGGER.trace("Tunnel to {}:{} established: {}", host, port, statusLine);
+
+		return response.position() > headersEnd ? Arrays.copyOfRange(response.array(), headersEnd, response.position()) : null;
+	}
+
+	private String createRequest(String host, int port) {
+		// IPv6 literals need brackets in the authority
+		final String authority = (host.indexOf(':') >= 0 && !host.startsWith("[") ? "[" + host + "]" : host) + ":" + port;
+		final StringBuilder sb = new StringBuilder();
+		sb.append("CONNECT ").append(authority).append(" HTTP/1.1\r\n");
+		sb.append("Host: ").append(authority).append("\r\n");
+		if (proxyAuthorization != null) {
+			sb.append("Proxy-Authorization: ").append(proxyAuthorization).append("\r\n");
+		}
+		sb.append("\r\n");
+		return sb.toString();
+	}
+
+	private String getProxyString() {
+		return proxyHost + ":" + proxyPort;
 	}
 
 	@Override
 	public String getConnectionTypeString() {
-		return proxyHost.toHostString() + (this.proxyCredentials != null ? " with AUTH" : "");
+		return getProxyString() + (this.proxyAuthorization != null ? " with AUTH" : "");
 	}
-	
+
 }
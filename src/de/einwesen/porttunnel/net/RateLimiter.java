@@ -0,0 +1,132 @@
+package de.einwesen.porttunnel.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Token bucket limiting the bandwidth of a connection, a tunnel or the whole
+ * process. Limiters are chained, so the bytes of a connection are taken from
+ * its own bucket as well as from the buckets of its tunnel and of the process.
+ *
+ * The bucket is kept as the time it will be full again, which is updated with
+ * a single compare and set, so there is no lock even if all connections share
+ * it. Data already read is always taken, even beyond the burst. The caller then
+ * stops reading until the debt is paid off, which lets TCP slow down the sender
+ * instead of buffering the data.
+ */
+public class RateLimiter {
+
+	/** Burst if none is given: 100ms of traffic, but at least this **/
+	public static final int MIN_DEFAULT_BURST = 64 * 1024;
+
+	/**
+	 * Replaced as a whole, so rate and burst always match
+	 */
+	private static final class Limit {
+		private final long bytesPerSecond;
+		private final long burst;
+		private final long burstNanos;
+
+		Limit(long bytesPerSecond, long burst) {
+			this.bytesPerSecond = bytesPerSecond;
+			this.burst = burst;
+			this.burstNanos = bytesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(burst) / bytesPerSecond : 0;
+		}
+	}
+
+	private final RateLimiter parent;
+	private volatile Limit limit = new Limit(0, 0);
+	/** Time the bucket will be full again **/
+	private final AtomicLong fullNanos = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Unlimited, until {@link #setRate(long, long)}
+	 *
+	 * @param parent limiter to take the bytes from as well, may be null
+	 */
+	public RateLimiter(RateLimiter parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * @param parent limiter to take the bytes from as well, may be null
+	 * @param bytesPerSecond 0 for unlimited
+	 * @param burst bytes, which can be taken at once from a full bucket, 0 for the default
+	 */
+	public RateLimiter(RateLimiter parent, long bytesPerSecond, long burst) {
+		this(parent);
+		setRate(bytesPerSecond, burst);
+	}
+
+	/**
+	 * Can be changed at any time, also while connections are running
+	 *
+	 * @param bytesPerSecond 0 for unlimited
+	 * @param burst bytes, which can be taken at once from a full bucket, 0 for the default
+	 */
+	public void setRate(long bytesPerSecond, long burst) {
+		final long rate = Math.max(0, bytesPerSecond);
+		this.limit = new Limit(rate, burst > 0 ? burst : defaultBurst(rate));
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 * @return burst used, if none is given
+	 */
+	public static long defaultBurst(long bytesPerSecond) {
+		return Math.max(MIN_DEFAULT_BURST, bytesPerSecond / 10);
+	}
+
+	/**
+	 * Take <i>bytes</i> from this bucket and all parents. Called for every read,
+	 * so it must stay cheap.
+	 *
+	 * @param bytes already read
+	 * @return nanos to pause reading, before the next read is within the limits
+	 */
+	public long acquire(int bytes) {
+		long pause = 0;
+		final Limit current = this.limit;
+		if (current.bytesPerSecond > 0) {
+			final long now = System.nanoTime();
+			final long cost = bytes * TimeUnit.SECONDS.toNanos(1) / current.bytesPerSecond;
+			long full;
+			long next;
+			do {
+				full = fullNanos.get();
+				// An idle bucket does not fill up beyond the burst
+				next = Math.max(full, now) + cost;
+			} while (!fullNanos.compareAndSet(full, next));
+			pause = next - now - current.burstNanos;
+		}
+
+		if (parent != null) {
+			pause = Math.max(pause, parent.acquire(bytes));
+		}
+		return Math.max(0, pause);
+	}
+
+	/**
+	 * @return bytes per second, 0 if unlimited
+	 */
+	public long getRate() {
+		return limit.bytesPerSecond;
+	}
+
+	/**
+	 * @return bytes, which can be taken at once from a full bucket
+	 */
+	public long getBurst() {
+		return limit.burst;
+	}
+
+	@Override
+	public String toString() {
+		final Limit current = this.limit;
+		return current.bytesPerSecond > 0 ? current.bytesPerSecond + " bytes/s, burst " + current.burst : "unlimited";
+	}
+
+}
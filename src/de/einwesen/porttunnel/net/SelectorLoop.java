@@ -0,0 +1,240 @@
+package de.einwesen.porttunnel.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+import de.einwesen.porttunnel.log.ConditionalStackLog.STACK_LOGLEVEL;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * A single selector thread, serving any number of {@link NioTunnel}s.
+ * New tunnels are queued by other threads and picked up on the next wakeup.
+ * A tunnel closed by another thread is released on the loop as well.
+ *
+ * Tunnels can schedule tasks on the loop, e.g. to resume reading after being
+ * throttled. The select waits no longer than until the next one is due.
+ * Waits shorter than the millisecond resolution of the select, as used for
+ * coalescing, park the loop instead, and pick up the ready keys afterwards.
+ */
+class SelectorLoop implements Runnable {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(SelectorLoop.class));
+
+	/**
+	 * A task due at a given time. Tasks due at the same time run in the order
+	 * they were scheduled.
+	 */
+	private static final class Timer implements Comparable<Timer> {
+		private final long dueNanos;
+		private final long sequence;
+		private final Runnable task;
+
+		Timer(long dueNanos, long sequence, Runnable task) {
+			this.dueNanos = dueNanos;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			final int due = Long.signum(dueNanos - other.dueNanos);
+			return due != 0 ? due : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private static final long SUB_MILLI_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Selector selector;
+	private final BufferPool bufferPool;
+	private final TrafficSettings settings;
+	private final Queue<NioTunnel> pendingTunnels = new ConcurrentLinkedQueue<NioTunnel>();
+	private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+	/** Only touched by the loop thread **/
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+	private long timerSequence = 0;
+	private volatile Thread loopThread = null;
+	private volatile boolean isRunning = true;
+
+	/**
+	 * @param bufferPool
+	 * @param settings
+	 * @throws IOException
+	 */
+	SelectorLoop(BufferPool bufferPool, TrafficSettings settings) throws IOException {
+		this.bufferPool = bufferPool;
+		this.settings = settings;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Hand over a tunnel to this loop. May be called from any thread.
+	 *
+	 * @param tunnel
+	 */
+	void register(NioTunnel tunnel) {
+		pendingTunnels.add(tunnel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Run a task on the loop thread. Runs it at once, if already on it.
+	 *
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		if (Thread.currentThread() == loopThread) {
+			task.run();
+		} else {
+			pendingTasks.add(task);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Run a task on the loop thread after a delay. Must be called on the loop thread.
+	 *
+	 * @param task
+	 * @param delayNanos
+	 */
+	void schedule(Runnable task, long delayNanos) {
+		timers.add(new Timer(System.nanoTime() + delayNanos, timerSequence++, task));
+	}
+
+	@Override
+	public void run() {
+		LOGGER.debug("running ... ");
+		loopThread = Thread.currentThread();
+
+		while (isRunning) {
+			try {
+				select();
+				registerPendingTunnels();
+				runPendingTasks();
+				runDueTimers();
+
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) {
+						((NioTunnel)key.attachment()).handle(key);
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				isRunning = false;
+			} catch (Throwable e) {
+				LOGGER.error("Error in selector loop", e, STACK_LOGLEVEL.DEBUG);
+			}
+		}
+
+		closeAll();
+		LOGGER.debug("Stopped");
+	}
+
+	private void registerPendingTunnels() {
+		NioTunnel tunnel;
+		while ((tunnel = pendingTunnels.poll()) != null) {
+			try {
+				tunnel.register(this, selector, bufferPool, settings);
+			} catch (IOException e) {
+				LOGGER.error(tunnel.getLogPrefix() + "Could not register connection", e, STACK_LOGLEVEL.DEBUG);
+				tunnel.close();
+				continue;
+			}
+
+			// Closing the sockets from elsewhere only cancels the keys, so release the tunnel here
+			final NioTunnel registered = tunnel;
+			tunnel.getConnection().addCloseListener(new Runnable() {
+				@Override
+				public void run() {
+					execute(new Runnable() {
+						@Override
+						public void run() {
+							registered.close();
+						}
+					});
+				}
+			});
+		}
+	}
+
+	private void select() throws IOException {
+		final Timer next = timers.peek();
+		if (next == null) {
+			selector.select();
+			return;
+		}
+
+		final long waitNanos = next.dueNanos - System.nanoTime();
+		if (waitNanos <= 0) {
+			selector.selectNow();
+		} else if (waitNanos < SUB_MILLI_WAIT_NANOS) {
+			LockSupport.parkNanos(waitNanos);
+			selector.selectNow();
+		} else {
+			// Rounded up, select(0) would wait forever
+			selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1)));
+		}
+	}
+
+	private void runDueTimers() {
+		final long now = System.nanoTime();
+		Timer timer;
+		while ((timer = timers.peek()) != null && timer.dueNanos - now <= 0) {
+			timers.poll();
+			try {
+				timer.task.run();
+			} catch (Throwable e) {
+				LOGGER.error("Error in scheduled selector task", e, STACK_LOGLEVEL.DEBUG);
+			}
+		}
+	}
+
+	private void runPendingTasks() {
+		Runnable task;
+		while ((task = pendingTasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Throwable e) {
+				LOGGER.error("Error in selector task", e, STACK_LOGLEVEL.DEBUG);
+			}
+		}
+	}
+
+	private void closeAll() {
+		timers.clear();
+		NioTunnel tunnel;
+		while ((tunnel = pendingTunnels.poll()) != null) {
+			tunnel.close();
+		}
+
+		try {
+			for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+				((NioTunnel)key.attachment()).close();
+			}
+			selector.close();
+		} catch (Throwable e) {
+			LOGGER.trace("Could not close selector", e);
+		}
+	}
+
+	void stopRunning() {
+		isRunning = false;
+		selector.wakeup();
+	}
+
+}
@@ -0,0 +1,87 @@
+package de.einwesen.porttunnel.net;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Non-blocking engine. All connections are shared round robin between a fixed
+ * number of {@link SelectorLoop}s, instead of starting two threads per connection.
+ *
+ * Sockets which are not backed by a {@link SocketChannel} (e.g. from a custom
+ * {@link TunnelSocketFactory}) are handed to a fallback engine.
+ */
+public class SelectorTrafficEngine implements TrafficEngine {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(SelectorTrafficEngine.class));
+	public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+	private final SelectorLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final TrafficEngine fallbackEngine;
+
+	/**
+	 * @param loopCount number of selector threads, usually one per core
+	 * @param bufferPool
+	 * @param settings
+	 * @param fallbackEngine used for connections, which are not channel based
+	 * @throws IOException
+	 */
+	public SelectorTrafficEngine(int loopCount, BufferPool bufferPool, TrafficSettings settings, TrafficEngine fallbackEngine) throws IOException {
+		if (loopCount < 1) {
+			throw new IllegalArgumentException("At least one selector loop is required");
+		}
+
+		this.fallbackEngine = fallbackEngine;
+		this.loops = new SelectorLoop[loopCount];
+
+		for (int i=0; i < loopCount; i++) {
+			this.loops[i] = new SelectorLoop(bufferPool, settings);
+			final Thread t = new Thread(this.loops[i], SelectorLoop.class.getSimpleName() + "-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Uses one selector loop per available processor
+	 *
+	 * @param fallbackEngine
+	 * @throws IOException
+	 */
+	public SelectorTrafficEngine(TrafficEngine fallbackEngine) throws IOException {
+		this(Runtime.getRuntime().availableProcessors(), new BufferPool(), new TrafficSettings(DEFAULT_BUFFER_SIZE), fallbackEngine);
+	}
+
+	@Override
+	public void forward(TunnelConnection connection) throws IOException {
+		if (connection.getClientSocket().getChannel() == null || connection.getTargetSocket().getChannel() == null) {
+			LOGGER.debug("{}not channel based, using {}", connection.getLogPrefix(), fallbackEngine.getEngineTypeString());
+			fallbackEngine.forward(connection);
+		} else {
+			final SelectorLoop loop = this.loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length];
+			loop.register(new NioTunnel(connection));
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		for (SelectorLoop loop : this.loops) {
+			loop.stopRunning();
+		}
+		fallbackEngine.shutdown();
+	}
+
+	@Override
+	public String getEngineTypeString() {
+		return "NIO (" + this.loops.length + " loops)";
+	}
+
+}
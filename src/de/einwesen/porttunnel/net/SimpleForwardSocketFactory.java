@@ -9,9 +9,28 @@ import java.net.Socket;
  */
 public class SimpleForwardSocketFactory implements TunnelSocketFactory {
 
+	private final TargetConnector connector;
+
+	/**
+	 * @param connector used to race the addresses of the target
+	 */
+	public SimpleForwardSocketFactory(TargetConnector connector) {
+		this.connector = connector;
+	}
+
+	public SimpleForwardSocketFactory() {
+		this(new TargetConnector());
+	}
+
 	@Override
 	public Socket openSocket(String host, int port) throws IOException {
-		return new Socket(host, port);
+		// Channel based, so non-blocking engines can use it as well
+		return connector.connect(host, port).socket();
+	}
+
+	@Override
+	public byte[] takeInitialData(Socket socket) {
+		return null;
 	}
 
 	@Override
@@ -0,0 +1,335 @@
+package de.einwesen.porttunnel.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Socket options for one side of the tunnel. Options not set are left at the
+ * defaults of the JVM and OS. Written as a comma separated list, e.g.
+ *
+ * <pre>
+ * nodelay,keepalive,keepidle=60,keepinterval=10,keepcount=5,rcvbuf=262144,sndbuf=262144,linger=0,tos=0x10
+ * </pre>
+ *
+ * The keepalive timing (in seconds) is not part of {@link StandardSocketOptions}
+ * before java 11, and not supported on all platforms. So it is looked up by
+ * name, and only applied to channel based sockets.
+ */
+public class SocketSettings {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(SocketSettings.class));
+
+	public static final String NODELAY = "nodelay";
+	public static final String KEEPALIVE = "keepalive";
+	public static final String KEEPIDLE = "keepidle";
+	public static final String KEEPINTERVAL = "keepinterval";
+	public static final String KEEPCOUNT = "keepcount";
+	public static final String RCVBUF = "rcvbuf";
+	public static final String SNDBUF = "sndbuf";
+	public static final String LINGER = "linger";
+	public static final String TOS = "tos";
+
+	private Boolean tcpNoDelay = null;
+	private Boolean keepAlive = null;
+	private int keepAliveIdle = 0;
+	private int keepAliveInterval = 0;
+	private int keepAliveCount = 0;
+	private int receiveBufferSize = 0;
+	private int sendBufferSize = 0;
+	private int linger = -1;
+	private int trafficClass = -1;
+
+	/**
+	 * @param list as described above, may be null or empty
+	 * @return settings of the list
+	 * @throws IllegalArgumentException if an entry is unknown or invalid
+	 */
+	public static SocketSettings parse(String list) {
+		final SocketSettings settings = new SocketSettings();
+		if (list == null) {
+			return settings;
+		}
+
+		for (String entry : list.split(",")) {
+			entry = entry.trim();
+			if (entry.isEmpty()) {
+				continue;
+			}
+
+			final int separator = entry.indexOf('=');
+			final String name = (separator < 0 ? entry : entry.substring(0, separator)).trim().toLowerCase();
+			final String value = separator < 0 ? null : entry.substring(separator + 1).trim();
+
+			if (NODELAY.equals(name)) {
+				settings.setTcpNoDelay(parseBoolean(name, value));
+			} else if (KEEPALIVE.equals(name)) {
+				settings.setKeepAlive(parseBoolean(name, value));
+			} else if (KEEPIDLE.equals(name)) {
+				settings.setKeepAliveIdle(parseInt(name, value));
+			} else if (KEEPINTERVAL.equals(name)) {
+				settings.setKeepAliveInterval(parseInt(name, value));
+			} else if (KEEPCOUNT.equals(name)) {
+				settings.setKeepAliveCount(parseInt(name, value));
+			} else if (RCVBUF.equals(name)) {
+				settings.setReceiveBufferSize(parseInt(name, value));
+			} else if (SNDBUF.equals(name)) {
+				settings.setSendBufferSize(parseInt(name, value));
+			} else if (LINGER.equals(name)) {
+				settings.setLinger(parseInt(name, value));
+			} else if (TOS.equals(name)) {
+				settings.setTrafficClass(parseInt(name, value));
+			} else {
+				throw new IllegalArgumentException("Unknown socket option [" + name + "]");
+			}
+		}
+		return settings;
+	}
+
+	private static boolean parseBoolean(String name, String value) {
+		if (value == null || "true".equalsIgnoreCase(value)) {
+			return true;
+		} else if ("false".equalsIgnoreCase(value)) {
+			return false;
+		}
+		throw new IllegalArgumentException("Socket option " + name + ": Not a boolean [" + value + "]");
+	}
+
+	private static int parseInt(String name, String value) {
+		try {
+			final int result = Integer.decode(value);
+			if (result < 0) {
+				throw new IllegalArgumentException("Socket option " + name + ": Must not be negative [" + value + "]");
+			}
+			return result;
+		} catch (NumberFormatException | NullPointerException e) {
+			throw new IllegalArgumentException("Socket option " + name + ": Not a number [" + value + "]");
+		}
+	}
+
+	/**
+	 * Apply to a channel, before it is connected or right after it was accepted
+	 *
+	 * @param channel
+	 * @throws IOException if a standard option can not be set
+	 */
+	public void apply(NetworkChannel channel) throws IOException {
+		if (tcpNoDelay != null) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+		}
+		if (keepAlive != null) {
+			channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+		}
+		applyExtended(channel, "TCP_KEEPIDLE", keepAliveIdle);
+		applyExtended(channel, "TCP_KEEPINTERVAL", keepAliveInterval);
+		applyExtended(channel, "TCP_KEEPCOUNT", keepAliveCount);
+		if (receiveBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+		if (sendBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+		}
+		if (linger >= 0) {
+			channel.setOption(StandardSocketOptions.SO_LINGER, linger);
+		}
+		if (trafficClass >= 0) {
+			channel.setOption(StandardSocketOptions.IP_TOS, trafficClass);
+		}
+	}
+
+	/**
+	 * Apply to a socket, which may or may not be channel based
+	 *
+	 * @param socket
+	 * @throws IOException if a standard option can not be set
+	 */
+	public void apply(Socket socket) throws IOException {
+		if (socket.getChannel() != null) {
+			apply(socket.getChannel());
+			return;
+		}
+
+		if (tcpNoDelay != null) {
+			socket.setTcpNoDelay(tcpNoDelay);
+		}
+		if (keepAlive != null) {
+			socket.setKeepAlive(keepAlive);
+		}
+		if (keepAliveIdle > 0 || keepAliveInterval > 0 || keepAliveCount > 0) {
+			LOGGER.debug("Keepalive timing is only applied to channel based sockets");
+		}
+		if (receiveBufferSize > 0) {
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+		if (sendBufferSize > 0) {
+			socket.setSendBufferSize(sendBufferSize);
+		}
+		if (linger >= 0) {
+			socket.setSoLinger(true, linger);
+		}
+		if (trafficClass >= 0) {
+			socket.setTrafficClass(trafficClass);
+		}
+	}
+
+	private static void applyExtended(NetworkChannel channel, String name, int value) throws IOException {
+		if (value <= 0) {
+			return;
+		}
+		final SocketOption<Integer> option = findOption(channel, name, Integer.class);
+		if (option != null) {
+			channel.setOption(option, value);
+		} else {
+			LOGGER.debug("Socket option {} is not supported on this platform", name);
+		}
+	}
+
+	/**
+	 * Look up an option, which is not part of {@link StandardSocketOptions} in all
+	 * java versions, by its name
+	 *
+	 * @param channel
+	 * @param name
+	 * @param type of the value
+	 * @return null if the channel does not support it
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> SocketOption<T> findOption(NetworkChannel channel, String name, Class<T> type) {
+		for (SocketOption<?> option : channel.supportedOptions()) {
+			if (name.equals(option.name()) && type.equals(option.type())) {
+				return (SocketOption<T>)option;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if nothing is set
+	 */
+	public boolean isDefault() {
+		return toString().isEmpty();
+	}
+
+	/**
+	 * @param tcpNoDelay true to turn off Nagle's algorithm, null for the default
+	 */
+	public void setTcpNoDelay(Boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * @param keepAlive null for the default
+	 */
+	public void setKeepAlive(Boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * @param keepAliveIdle in seconds until the first probe, 0 for the default
+	 */
+	public void setKeepAliveIdle(int keepAliveIdle) {
+		this.keepAliveIdle = keepAliveIdle;
+	}
+
+	/**
+	 * @param keepAliveInterval in seconds between probes, 0 for the default
+	 */
+	public void setKeepAliveInterval(int keepAliveInterval) {
+		this.keepAliveInterval = keepAliveInterval;
+	}
+
+	/**
+	 * @param keepAliveCount probes without answer, before the connection is dropped, 0 for the default
+	 */
+	public void setKeepAliveCount(int keepAliveCount) {
+		this.keepAliveCount = keepAliveCount;
+	}
+
+	/**
+	 * @param receiveBufferSize in bytes, 0 for the default
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * @param sendBufferSize in bytes, 0 for the default
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * @param linger in seconds to wait for unsent data on close, -1 for the default
+	 */
+	public void setLinger(int linger) {
+		this.linger = linger;
+	}
+
+	/**
+	 * @param trafficClass value of the IP_TOS byte, -1 for the default
+	 */
+	public void setTrafficClass(int trafficClass) {
+		this.trafficClass = trafficClass;
+	}
+
+	/**
+	 * @return in bytes, 0 for the default
+	 */
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * @return the settings in the format of {@link #parse(String)}, empty if nothing is set
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		if (tcpNoDelay != null) {
+			append(sb, NODELAY, tcpNoDelay);
+		}
+		if (keepAlive != null) {
+			append(sb, KEEPALIVE, keepAlive);
+		}
+		if (keepAliveIdle > 0) {
+			append(sb, KEEPIDLE, keepAliveIdle);
+		}
+		if (keepAliveInterval > 0) {
+			append(sb, KEEPINTERVAL, keepAliveInterval);
+		}
+		if (keepAliveCount > 0) {
+			append(sb, KEEPCOUNT, keepAliveCount);
+		}
+		if (receiveBufferSize > 0) {
+			append(sb, RCVBUF, receiveBufferSize);
+		}
+		if (sendBufferSize > 0) {
+			append(sb, SNDBUF, sendBufferSize);
+		}
+		if (linger >= 0) {
+			append(sb, LINGER, linger);
+		}
+		if (trafficClass >= 0) {
+			append(sb, TOS, trafficClass);
+		}
+		return sb.toString();
+	}
+
+	private static void append(StringBuilder sb, String name, Object value) {
+		if (sb.length() > 0) {
+			sb.append(',');
+		}
+		sb.append(name).append('=').append(value);
+	}
+
+}
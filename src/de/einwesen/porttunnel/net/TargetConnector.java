@@ -0,0 +1,200 @@
+package de.einwesen.porttunnel.net;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Connects to a host, which may resolve to several addresses. Non-blocking
+ * connects are started one after the other, each <i>staggerDelay</i> ms after
+ * the previous one (or at once, if it failed). The first one to complete wins,
+ * all others are closed. IPv6 and IPv4 addresses are tried alternating.
+ *
+ * The {@link SocketSettings} are applied to every attempt before connecting,
+ * so large buffers can take part in the window scaling of the handshake.
+ */
+public class TargetConnector {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(TargetConnector.class));
+
+	public static final int DEFAULT_STAGGER_DELAY = 250;
+
+	private final int connectTimeout;
+	private final int staggerDelay;
+	private final SocketSettings socketSettings;
+
+	/**
+	 * @param connectTimeout in ms for the whole attempt, 0 to wait until the OS gives up
+	 * @param staggerDelay in ms between starting the connects to the next address
+	 * @param socketSettings applied to the sockets to the target
+	 */
+	public TargetConnector(int connectTimeout, int staggerDelay, SocketSettings socketSettings) {
+		this.connectTimeout = connectTimeout;
+		this.staggerDelay = staggerDelay;
+		this.socketSettings = socketSettings;
+	}
+
+	/**
+	 * @param connectTimeout in ms for the whole attempt, 0 to wait until the OS gives up
+	 * @param staggerDelay in ms between starting the connects to the next address
+	 */
+	public TargetConnector(int connectTimeout, int staggerDelay) {
+		this(connectTimeout, staggerDelay, new SocketSettings());
+	}
+
+	public TargetConnector() {
+		this(0, DEFAULT_STAGGER_DELAY);
+	}
+
+	/**
+	 * @param host
+	 * @param port
+	 * @return connected channel, in blocking mode
+	 * @throws IOException if no address could be connected in time
+	 */
+	public SocketChannel connect(String host, int port) throws IOException {
+		final List<InetAddress> addresses = interleaveFamilies(InetAddress.getAllByName(host));
+		final long deadline = connectTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout) : Long.MAX_VALUE;
+
+		final List<SocketChannel> attempts = new ArrayList<SocketChannel>(addresses.size());
+		SocketChannel winner = null;
+		IOException lastError = null;
+
+		final Selector selector = Selector.open();
+		try {
+			int nextAddress = 0;
+			long nextStart = System.nanoTime();
+
+			while (winner == null) {
+				long now = System.nanoTime();
+
+				if (nextAddress < addresses.size() && now >= nextStart) {
+					final InetSocketAddress address = new InetSocketAddress(addresses.get(nextAddress++), port);
+					LOGGER.trace("Connecting " + address);
+
+					final SocketChannel channel = SocketChannel.open();
+					attempts.add(channel);
+					try {
+						channel.configureBlocking(false);
+						socketSettings.apply(channel);
+						if (channel.connect(address)) {
+							winner = channel;
+							break;
+						}
+						channel.register(selector, SelectionKey.OP_CONNECT);
+					} catch (IOException e) {
+						lastError = e;
+						closeQuietly(channel);
+						attempts.remove(channel);
+						continue;
+					}
+					nextStart = now + TimeUnit.MILLISECONDS.toNanos(staggerDelay);
+				}
+
+				if (attempts.isEmpty() && nextAddress >= addresses.size()) {
+					throw lastError != null ? lastError : new IOException("No address to connect for " + host);
+				}
+
+				if (now >= deadline) {
+					throw new SocketTimeoutException("Connect to " + host + ":" + port + " timed out after " + connectTimeout + "ms");
+				}
+
+				final long waitUntil = nextAddress < addresses.size() ? Math.min(nextStart, deadline) : deadline;
+				selector.select(waitUntil == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitUntil - now)));
+
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext() && winner == null) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					final SocketChannel channel = (SocketChannel)key.channel();
+					try {
+						if (channel.finishConnect()) {
+							winner = channel;
+						}
+					} catch (IOException e) {
+						LOGGER.trace("Connect failed", e);
+						lastError = e;
+						closeQuietly(channel);
+						attempts.remove(channel);
+						// Don't wait for the delay, when the last one failed
+						nextStart = System.nanoTime();
+					}
+				}
+			}
+		} finally {
+			for (SocketChannel channel : attempts) {
+				if (channel != winner) {
+					closeQuietly(channel);
+				}
+			}
+			// Deregisters the winner, so it can be switched back to blocking
+			selector.close();
+		}
+
+		winner.configureBlocking(true);
+		return winner;
+	}
+
+	/**
+	 * Alternate between IPv6 and IPv4, keeping the resolver order within each family.
+	 */
+	private static List<InetAddress> interleaveFamilies(InetAddress[] resolved) {
+		final List<InetAddress> v6 = new ArrayList<InetAddress>();
+		final List<InetAddress> v4 = new ArrayList<InetAddress>();
+		for (InetAddress address : resolved) {
+			(address instanceof Inet6Address ? v6 : v4).add(address);
+		}
+
+		final boolean v6First = resolved.length > 0 && resolved[0] instanceof Inet6Address;
+		final List<InetAddress> first = v6First ? v6 : v4;
+		final List<InetAddress> second = v6First ? v4 : v6;
+
+		final List<InetAddress> result = new ArrayList<InetAddress>(resolved.length);
+		for (int i=0; i < Math.max(first.size(), second.size()); i++) {
+			if (i < first.size()) {
+				result.add(first.get(i));
+			}
+			if (i < second.size()) {
+				result.add(second.get(i));
+			}
+		}
+		return result;
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.trace("Could not close channel", e);
+		}
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getStaggerDelay() {
+		return staggerDelay;
+	}
+
+	public SocketSettings getSocketSettings() {
+		return socketSettings;
+	}
+
+}
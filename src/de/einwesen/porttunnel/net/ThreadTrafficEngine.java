@@ -0,0 +1,123 @@
+package de.einwesen.porttunnel.net;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Blocking engine, using one {@link TrafficProcessor} thread per direction.
+ * The threads are either platform threads, or virtual threads when running
+ * on a JVM which supports them.
+ * 
+ * With channel forwarding enabled, a {@link ChannelTrafficProcessor} is used
+ * for all connections where both sockets are channel based.
+ */
+public class ThreadTrafficEngine implements TrafficEngine {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	private final ThreadFactory threadFactory;
+	private final boolean channelForwarding;
+	private final BufferPool bufferPool;
+	private final TrafficSettings settings;
+
+	/**
+	 * Uses platform threads and the stream copy loop
+	 */
+	public ThreadTrafficEngine() {
+		this(false, new BufferPool(), new TrafficSettings(DEFAULT_BUFFER_SIZE));
+	}
+
+	/**
+	 * Uses platform threads
+	 * 
+	 * @param channelForwarding
+	 * @param bufferPool used for channel forwarding
+	 * @param settings
+	 */
+	public ThreadTrafficEngine(boolean channelForwarding, BufferPool bufferPool, TrafficSettings settings) {
+		this(null, channelForwarding, bufferPool, settings);
+	}
+
+	private ThreadTrafficEngine(ThreadFactory threadFactory, boolean channelForwarding, BufferPool bufferPool, TrafficSettings settings) {
+		this.threadFactory = threadFactory;
+		this.channelForwarding = channelForwarding;
+		this.bufferPool = bufferPool;
+		this.settings = settings;
+	}
+
+	/**
+	 * Creates an engine running every {@link TrafficProcessor} on a virtual thread.
+	 * Looked up reflective, so we still run on older JVMs without this option.
+	 *
+	 * @param channelForwarding
+	 * @param bufferPool used for channel forwarding
+	 * @param settings
+	 * @return
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	public static ThreadTrafficEngine withVirtualThreads(boolean channelForwarding, BufferPool bufferPool, TrafficSettings settings) {
+		try {
+			final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			final Object builder = ofVirtual.invoke(null);
+			final Method factory = ofVirtual.getReturnType().getMethod("factory");
+			return new ThreadTrafficEngine((ThreadFactory)factory.invoke(builder), channelForwarding, bufferPool, settings);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM (" + System.getProperty("java.version") + ")", e);
+		}
+	}
+
+	@Override
+	public void forward(TunnelConnection connection) throws IOException {
+		final Socket clientSocket = connection.getClientSocket();
+		final Socket targetSocket = connection.getTargetSocket();
+
+		//Start sending to target first
+		final TrafficProcessor source2Target = createProcessor(connection, clientSocket, targetSocket);
+		source2Target.setSourceName(connection.getClientName());
+		source2Target.setTargetName(connection.getTargetName());
+
+		startThread(source2Target, TrafficProcessor.class.getSimpleName() + " " + source2Target.getSourceName() + " -> " + source2Target.getTargetName());
+
+		final TrafficProcessor target2source = createProcessor(connection, targetSocket, clientSocket);
+		target2source.setTargetName(connection.getClientName());
+		target2source.setSourceName(connection.getTargetName());
+
+		startThread(target2source, TrafficProcessor.class.getSimpleName() + " " + target2source.getSourceName() + " -> " + target2source.getTargetName());
+	}
+
+	private TrafficProcessor createProcessor(TunnelConnection connection, Socket sourceSocket, Socket targetSocket) throws IOException {
+		if (channelForwarding && ChannelTrafficProcessor.isApplicable(sourceSocket, targetSocket)) {
+			return new ChannelTrafficProcessor(connection, sourceSocket, targetSocket, bufferPool, settings);
+		} else {
+			// Sockets of a custom TunnelSocketFactory may not be channel based
+			return new TrafficProcessor(connection, sourceSocket, targetSocket, settings);
+		}
+	}
+
+	private void startThread(Runnable r, String name) {
+		if (threadFactory == null) {
+			new Thread(r, name).start();
+		} else {
+			// Keep the name, so the processors can still be found in thread dumps
+			final Thread t = threadFactory.newThread(r);
+			t.setName(name);
+			t.start();
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		// Nothing to release, every connection owns its threads
+	}
+
+	@Override
+	public String getEngineTypeString() {
+		return (threadFactory == null ? "THREAD" : "VIRTUAL THREAD") + (channelForwarding ? " / CHANNEL" : "");
+	}
+
+}
@@ -0,0 +1,230 @@
+package de.einwesen.porttunnel.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+import de.einwesen.porttunnel.log.ConditionalStackLog.STACK_LOGLEVEL;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Hashed timing wheel, running the timeouts of all connections from a single
+ * thread. A timeout is put into the slot of the tick it expires in, modulo the
+ * size of the wheel, together with the number of rotations left. Every tick
+ * only the slot due is visited, so scheduling, cancelling and expiring cost the
+ * same regardless of how many timeouts are pending.
+ *
+ * Timeouts fire up to one tick late, and never early. Tasks run on the wheel
+ * thread and must not block. Cancelled timeouts are unlinked when the wheel
+ * passes their slot the next time.
+ */
+public final class TimingWheel {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(TimingWheel.class));
+
+	public static final long DEFAULT_TICK_MILLIS = 100;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static final int STATE_PENDING = 0;
+	private static final int STATE_CANCELLED = 1;
+	private static final int STATE_EXPIRED = 2;
+
+	/**
+	 * A scheduled task. Linked into the slot it expires in, which is only
+	 * touched by the wheel thread.
+	 */
+	public static final class Timeout {
+		private final Runnable task;
+		/** Since the start of the wheel **/
+		private final long deadlineNanos;
+		private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+		private long rounds;
+		private Timeout prev;
+		private Timeout next;
+
+		Timeout(Runnable task, long deadlineNanos) {
+			this.task = task;
+			this.deadlineNanos = deadlineNanos;
+		}
+
+		/**
+		 * Removed from the wheel on its next tick. May be called from any thread.
+		 *
+		 * @return false if it already expired or was cancelled
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(STATE_PENDING, STATE_CANCELLED);
+		}
+
+		public boolean isCancelled() {
+			return state.get() == STATE_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == STATE_EXPIRED;
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timeouts in one slot
+	 */
+	private static final class Slot {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		/**
+		 * @return the timeout after the removed one
+		 */
+		Timeout remove(Timeout timeout) {
+			final Timeout next = timeout.next;
+			if (timeout.prev != null) {
+				timeout.prev.next = next;
+			} else {
+				head = next;
+			}
+			if (next != null) {
+				next.prev = timeout.prev;
+			} else {
+				tail = timeout.prev;
+			}
+			timeout.prev = timeout.next = null;
+			return next;
+		}
+	}
+
+	private static final class Holder {
+		private static final TimingWheel INSTANCE = new TimingWheel(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+	}
+
+	private final long tickNanos;
+	private final Slot[] slots;
+	private final int mask;
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final long startNanos;
+	/** Only touched by the wheel thread **/
+	private long tick = 0;
+
+	/**
+	 * @param tickMillis resolution of the timeouts
+	 * @param wheelSize slots, rounded up to a power of two
+	 */
+	public TimingWheel(long tickMillis, int wheelSize) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		final int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+		this.mask = size - 1;
+		this.slots = new Slot[size];
+		for (int i=0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+		this.startNanos = System.nanoTime();
+
+		final Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runTicks();
+			}
+		}, "TimingWheel");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return wheel shared by all connections of the process, started on first use
+	 */
+	public static TimingWheel getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Run <i>task</i> on the wheel thread after <i>delay</i>. May be called from any thread.
+	 *
+	 * @param task
+	 * @param delay
+	 * @param unit
+	 * @return handle to cancel it
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		final Timeout timeout = new Timeout(task, unit.toNanos(Math.max(0, delay)) + (System.nanoTime() - startNanos));
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	private void runTicks() {
+		while (true) {
+			try {
+				waitForTick();
+				transferNewTimeouts();
+				expire(slots[(int)(tick & mask)]);
+				tick++;
+			} catch (InterruptedException e) {
+				LOGGER.debug("Stopped");
+				return;
+			} catch (Throwable e) {
+				LOGGER.error("Error in timing wheel", e, STACK_LOGLEVEL.DEBUG);
+			}
+		}
+	}
+
+	private void waitForTick() throws InterruptedException {
+		final long deadline = (tick + 1) * tickNanos;
+		long sleepNanos;
+		while ((sleepNanos = deadline - (System.nanoTime() - startNanos)) > 0) {
+			TimeUnit.NANOSECONDS.sleep(sleepNanos);
+		}
+	}
+
+	/**
+	 * Put the timeouts scheduled since the last tick into their slots
+	 */
+	private void transferNewTimeouts() {
+		Timeout timeout;
+		while ((timeout = newTimeouts.poll()) != null) {
+			if (timeout.state.get() != STATE_PENDING) {
+				continue;
+			}
+			// Tick n is run at (n + 1) * tickNanos, so take the first one at or after the deadline
+			final long dueTick = Math.max(tick, (timeout.deadlineNanos + tickNanos - 1) / tickNanos - 1);
+			timeout.rounds = (dueTick - tick) / slots.length;
+			slots[(int)(dueTick & mask)].add(timeout);
+		}
+	}
+
+	private void expire(Slot slot) {
+		Timeout timeout = slot.head;
+		while (timeout != null) {
+			if (timeout.state.get() == STATE_CANCELLED) {
+				timeout = slot.remove(timeout);
+			} else if (timeout.rounds > 0) {
+				timeout.rounds--;
+				timeout = timeout.next;
+			} else {
+				final Timeout expired = timeout;
+				timeout = slot.remove(timeout);
+				if (expired.state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+					try {
+						expired.task.run();
+					} catch (Throwable e) {
+						LOGGER.error("Error in timeout task", e, STACK_LOGLEVEL.DEBUG);
+					}
+				}
+			}
+		}
+	}
+
+}
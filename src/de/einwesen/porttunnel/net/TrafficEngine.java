@@ -0,0 +1,29 @@
+package de.einwesen.porttunnel.net;
+
+import java.io.IOException;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Moves the traffic between an accepted client and its target, once
+ * both sockets are connected.
+ */
+public interface TrafficEngine {
+
+	/**
+	 * Start forwarding in both directions. Must not block until the
+	 * connection is finished.
+	 *
+	 * @param connection
+	 * @throws IOException
+	 */
+	public void forward(TunnelConnection connection) throws IOException;
+
+	/**
+	 * Release all resources of the engine. Connections still running may be dropped.
+	 */
+	public void shutdown();
+
+	public String getEngineTypeString();
+}
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.logging.LogFactory;
 
@@ -14,18 +16,31 @@ import de.einwesen.porttunnel.log.ConditionalStackLog.STACK_LOGLEVEL;
  * 
  * @author EinWesen
  * 
- * Reads from one socket, and copy it's data to another as long as 
- * both ends are up and running.
+ * Reads from one socket, and copy it's data to another until the source 
+ * reaches EOF. The EOF is passed on to the target as half-close, the 
+ * {@link TunnelConnection} closes both sockets when both directions are done.
+ * Any error tears down the whole connection.
+ * 
+ * When the connection exceeds its bandwidth, the processor stops reading for
+ * a while, so the sender is slowed down by TCP.
+ * 
+ * If the connection allows coalescing, data arriving shortly after a read is
+ * gathered into the same buffer, and written with a single call.
  *
  */
 public class TrafficProcessor implements Runnable {
 
 	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(TrafficProcessor.class));	
-	private static final int BAD_READ_MAX = 10; 
 	
-	private final Socket sourceSocket;
-	private final Socket targetSocket;
-	private final int    bufferSize;
+	/** A closed connection is noticed within this time, while the processor is throttled **/
+	private static final long MAX_PAUSE_SLICE = TimeUnit.MILLISECONDS.toNanos(100);
+	
+	protected final TunnelConnection connection;
+	protected final Socket sourceSocket;
+	protected final Socket targetSocket;
+	protected final TrafficSettings settings;
+	/** Direction, for counting the traffic **/
+	protected final boolean fromClient;
 	
 	private final InputStream is;
 	private final OutputStream os;
@@ -34,18 +49,21 @@ public class TrafficProcessor implements Runnable {
 	private String targetName = "TARGET";
 	
 	/** caches the logging prefix for performance **/
-	private String logPrefix = "[SOURCE -> TARGET] ";
+	protected String logPrefix = "[SOURCE -> TARGET] ";
 		
 	/**
+	 * @param connection the sockets belong to
 	 * @param sourceSocket
 	 * @param targetSocket
-	 * @param bufferSize
+	 * @param settings
 	 * @throws IOException 
 	 */
-	public TrafficProcessor(Socket sourceSocket, Socket targetSocket, int bufferSize) throws IOException {
+	public TrafficProcessor(TunnelConnection connection, Socket sourceSocket, Socket targetSocket, TrafficSettings settings) throws IOException {
+		this.connection = connection;
 		this.sourceSocket = sourceSocket;
 		this.targetSocket = targetSocket;
-		this.bufferSize = bufferSize;
+		this.settings = settings;
+		this.fromClient = sourceSocket == connection.getClientSocket();
 
 		sourceName = sourceSocket.getInetAddress().getHostAddress();
 		targetName = targetSocket.getInetAddress().getHostAddress();
@@ -58,66 +76,163 @@ public class TrafficProcessor implements Runnable {
 	@Override
 	public void run() {
 		
-		final byte[] buffer = new byte[bufferSize];
-		int readBytes = 0;
-		int badReadCounter = 0;
+		LOGGER.debug("{}running ({}) ... ", this.logPrefix, settings);
+		
+		if (copyTraffic()) {
+			LOGGER.debug("{}End of stream", this.logPrefix);
+			connection.finishDirection(targetSocket);
+		} else {
+			connection.close();
+		}
 		
-		LOGGER.debug(this.logPrefix + "running ("+bufferSize+") ... ");
+		LOGGER.info("{}Stopped", this.logPrefix);
+	}
+	
+	/**
+	 * Copies data until the source is done. 
+	 * 
+	 * @return true on EOF, false on any error
+	 */
+	protected boolean copyTraffic() {
+		final AdaptiveBufferSizer bufferSizer = new AdaptiveBufferSizer(settings);
+		byte[] buffer = new byte[bufferSizer.getSize()];
+		int readBytes = 0;
 		
-		while (checkSocketState(sourceSocket, 0)  && checkSocketState(targetSocket, 1) && badReadCounter < BAD_READ_MAX) {
+		while (true) {
 			   
 			try {
 				readBytes = is.read(buffer);			
 			} catch (Throwable e) {
-				readBytes = 0;
-				LOGGER.error( logPrefix + "Error reading source", e, STACK_LOGLEVEL.TRACE);
+				logError("Error reading source", e);
+				return false;
 			}
-			if (readBytes > 0) {
-				badReadCounter = 0;
-				try {				
-					os.write(buffer, 0, readBytes);				
+			
+			if (readBytes < 0) {
+				return true;
+			}
+			connection.countBytes(fromClient, readBytes);
+			
+			if (connection.getCoalesceNanos() > 0) {
+				try {
+					readBytes = coalesce(buffer, readBytes);
 				} catch (Throwable e) {
-					LOGGER.error( "Error writing to target", e, STACK_LOGLEVEL.TRACE);
-				}										
-			} else {
-				if (++badReadCounter == BAD_READ_MAX) {
-					LOGGER.debug(this.logPrefix + "No more data read from socket ("+BAD_READ_MAX+" times)");					
+					logError("Error reading source", e);
+					return false;
 				}
 			}
 			
+			try {				
+				connection.writeStalled(fromClient);
+				os.write(buffer, 0, readBytes);				
+				connection.writeCompleted(fromClient);
+			} catch (Throwable e) {
+				logError("Error writing to target", e);
+				return false;
+			}										
+			
+			if (!pauseReading(connection.throttle(readBytes))) {
+				return false;
+			}
+			
+			if (bufferSizer.update(readBytes)) {
+				buffer = new byte[bufferSizer.getSize()];
+			}
 		}
+	}
+	
+	/**
+	 * Read the data arriving within the latency budget of the connection, behind
+	 * the data already in the buffer. An EOF is left for the next read.
+	 * 
+	 * @param buffer
+	 * @param filled bytes already in the buffer
+	 * @return bytes in the buffer
+	 * @throws IOException
+	 */
+	private int coalesce(byte[] buffer, int filled) throws IOException {
+		final int limit = connection.getCoalesceLimit(buffer.length);
+		final long deadline = System.nanoTime() + connection.getCoalesceNanos();
+		int reads = 0;
 		
-		shutdownAndCloseSocket(sourceSocket, 0, sourceName);
-		shutdownAndCloseSocket(targetSocket, 1, targetName);
-		LOGGER.info(this.logPrefix + "Stopped");
+		while (filled < limit && awaitData(deadline)) {
+			// Returns what is there, without waiting for the rest
+			final int read = is.read(buffer, filled, limit - filled);
+			if (read <= 0) {
+				break;
+			}
+			connection.countBytes(fromClient, read);
+			filled += read;
+			reads++;
+		}
+		
+		connection.countCoalesced(reads);
+		return filled;
 	}
 	
-	private boolean checkSocketState(Socket s, int flagInOut) {		
-		return (!s.isClosed() && ((flagInOut == 0 && !s.isInputShutdown()) || (flagInOut == 1 && !s.isOutputShutdown())));		
+	/**
+	 * Check if the source has data, which can be read without blocking. If not,
+	 * wait once for the rest of the budget and check again. Polling meanwhile
+	 * would cost a syscall each time, and the CPU between them.
+	 * 
+	 * @param deadline as {@link System#nanoTime()}
+	 * @return false if there was none until the deadline
+	 * @throws IOException
+	 */
+	protected boolean awaitData(long deadline) throws IOException {
+		if (is.available() > 0) {
+			return true;
+		}
+		
+		long remaining = deadline - System.nanoTime();
+		if (remaining <= 0) {
+			return false;
+		}
+		while (remaining > 0 && !Thread.currentThread().isInterrupted()) {
+			LockSupport.parkNanos(remaining);
+			remaining = deadline - System.nanoTime();
+		}
+		return is.available() > 0;
 	}
 	
-	private void shutdownAndCloseSocket(Socket s, int flagInOut, String logName) {
-		if (s.isClosed()) {
-			LOGGER.trace(this.logPrefix + " " + logName + " is closed");
+	/**
+	 * Stop reading, while the connection is throttled
+	 * 
+	 * @param nanos
+	 * @return false if the connection was closed or the thread interrupted meanwhile
+	 */
+	protected boolean pauseReading(long nanos) {
+		if (nanos <= 0) {
+			return true;
+		}
+		
+		final long deadline = System.nanoTime() + nanos;
+		long remaining = nanos;
+		try {
+			while (remaining > 0 && !connection.isClosed()) {
+				TimeUnit.NANOSECONDS.sleep(Math.min(remaining, MAX_PAUSE_SLICE));
+				remaining = deadline - System.nanoTime();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logError("Interrupted while throttled", e);
+			return false;
+		}
+		return !connection.isClosed();
+	}
+	
+	/**
+	 * Errors caused by the other direction closing the connection are expected, 
+	 * and only traced.
+	 * 
+	 * @param message
+	 * @param e
+	 */
+	protected void logError(String message, Throwable e) {
+		if (connection.isClosed()) {
+			LOGGER.trace("{}{}", this.logPrefix, message, e);
 		} else {
-			LOGGER.trace(this.logPrefix + "Disconnecting " + logName);
-
-//			try {
-//				if (flagInOut == 0) {
-//					s.shutdownInput();
-//				} else if (flagInOut == 1){
-//					s.shutdownOutput();
-//				}
-//			} catch (IOException e) {
-//				LOGGER.trace(this.logPrefix + "can not shutdown " + logName, e);
-//			}				
-
-			try {
-				s.close();
-			} catch (IOException e) {
-				LOGGER.trace(this.logPrefix + "can not close " + logName, e);
-			}						
-		}		
+			LOGGER.error("{}{}", this.logPrefix, message, e, STACK_LOGLEVEL.TRACE);
+		}
 	}
 
 	private void generateLogPrefix() {
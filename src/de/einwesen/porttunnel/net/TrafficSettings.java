@@ -0,0 +1,67 @@
+package de.einwesen.porttunnel.net;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Settings shared by all processors of an engine.
+ */
+public class TrafficSettings {
+
+	private int bufferSize;
+	private int minBufferSize = 0;
+	private int maxBufferSize = 0;
+
+	/**
+	 * @param bufferSize initial buffer size per direction
+	 */
+	public TrafficSettings(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @return lower limit for adaptive sizing. Defaults to the buffer size.
+	 */
+	public int getMinBufferSize() {
+		return minBufferSize > 0 ? Math.min(minBufferSize, bufferSize) : bufferSize;
+	}
+
+	public void setMinBufferSize(int minBufferSize) {
+		this.minBufferSize = minBufferSize;
+	}
+
+	/**
+	 * @return upper limit for adaptive sizing. Defaults to the buffer size.
+	 */
+	public int getMaxBufferSize() {
+		return maxBufferSize > 0 ? Math.max(maxBufferSize, bufferSize) : bufferSize;
+	}
+
+	public void setMaxBufferSize(int maxBufferSize) {
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	/**
+	 * @return true, if the buffers may grow or shrink
+	 */
+	public boolean isAdaptiveBufferSize() {
+		return getMinBufferSize() < getMaxBufferSize();
+	}
+
+	/**
+	 * @return the buffer sizes as <i>min &lt;= size &lt;= max</i>
+	 */
+	@Override
+	public String toString() {
+		return getMinBufferSize() + " <= " + getBufferSize() + " <= " + getMaxBufferSize();
+	}
+
+}
@@ -0,0 +1,303 @@
+package de.einwesen.porttunnel.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+import de.einwesen.porttunnel.metrics.ConnectionMetrics;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * One accepted client, together with its target. Coordinates the shutdown of
+ * both directions: A direction reaching EOF is passed on as half-close, and the
+ * sockets are closed once both directions are finished. Any error closes the
+ * whole connection at once.
+ *
+ * Also keeps the time of the last read, and since when a write is waiting, for
+ * the {@link ConnectionTimeouts}.
+ */
+public class TunnelConnection {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(TunnelConnection.class));
+
+	private final Socket clientSocket;
+	private final Socket targetSocket;
+	private final String clientName;
+	private final String targetName;
+	private final String logPrefix;
+
+	private final AtomicInteger openDirections = new AtomicInteger(2);
+	private final List<Runnable> closeListeners = new ArrayList<Runnable>(2);
+	private boolean closed = false;
+	private ConnectionMetrics metrics = null;
+	private RateLimiter rateLimiter = null;
+	private volatile long lastReadNanos = System.nanoTime();
+	/** 0 if no data of that direction is waiting to be written **/
+	private volatile long clientWriteSince = 0;
+	private volatile long targetWriteSince = 0;
+	private long coalesceNanos = 0;
+	private int coalesceBytes = 0;
+
+	/**
+	 * @param clientSocket
+	 * @param targetSocket
+	 * @param clientName
+	 * @param targetName
+	 */
+	public TunnelConnection(Socket clientSocket, Socket targetSocket, String clientName, String targetName) {
+		this.clientSocket = clientSocket;
+		this.targetSocket = targetSocket;
+		this.clientName = clientName;
+		this.targetName = targetName;
+		this.logPrefix = "[" + clientName + " <-> " + targetName + "] ";
+	}
+
+	/**
+	 * Called when one direction has read EOF from <i>source</i>. Passes it on as
+	 * half-close to <i>target</i>, and closes the connection if this was the last
+	 * direction.
+	 *
+	 * @param target socket, which won't get any more data
+	 */
+	public void finishDirection(Socket target) {
+		try {
+			if (!target.isClosed() && !target.isOutputShutdown()) {
+				target.shutdownOutput();
+			}
+		} catch (IOException e) {
+			LOGGER.trace("{}can not shutdown output", this.logPrefix, e);
+		}
+
+		if (openDirections.decrementAndGet() <= 0) {
+			close();
+		}
+	}
+
+	/**
+	 * Close both sockets. Processors still blocked on them will fail, and should
+	 * check {@link #isClosed()} before reporting an error.
+	 */
+	public void close() {
+		synchronized (closeListeners) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+
+		closeSocket(clientSocket, clientName);
+		closeSocket(targetSocket, targetName);
+		LOGGER.debug("{}Closed", this.logPrefix);
+
+		if (metrics != null) {
+			metrics.closed();
+		}
+
+		for (Runnable listener : closeListeners) {
+			runCloseListener(listener);
+		}
+	}
+
+	/**
+	 * Register a callback, which is run once after the connection was closed.
+	 * If it already is closed, the callback is run at once.
+	 *
+	 * @param listener
+	 */
+	public void addCloseListener(Runnable listener) {
+		synchronized (closeListeners) {
+			if (!closed) {
+				closeListeners.add(listener);
+				return;
+			}
+		}
+		runCloseListener(listener);
+	}
+
+	private void runCloseListener(Runnable listener) {
+		try {
+			listener.run();
+		} catch (Throwable e) {
+			LOGGER.error(this.logPrefix + "Error in close listener", e);
+		}
+	}
+
+	private void closeSocket(Socket s, String logName) {
+		try {
+			s.close();
+		} catch (IOException e) {
+			LOGGER.trace("{}can not close {}", this.logPrefix, logName, e);
+		}
+	}
+
+	/**
+	 * Count transferred data. Called for every read, so it must stay cheap.
+	 *
+	 * @param fromClient direction of the data
+	 * @param bytes
+	 */
+	public void countBytes(boolean fromClient, int bytes) {
+		final long now = System.nanoTime();
+		lastReadNanos = now;
+		if (metrics != null) {
+			metrics.countBytes(fromClient, bytes, now);
+		}
+	}
+
+	/**
+	 * Reads merged into the write of an earlier read
+	 *
+	 * @param reads
+	 */
+	public void countCoalesced(int reads) {
+		if (metrics != null && reads > 0) {
+			metrics.countCoalesced(reads);
+		}
+	}
+
+	/**
+	 * Data of a direction is waiting to be written. Keeps the time of an earlier
+	 * call, until {@link #writeCompleted(boolean)}.
+	 *
+	 * @param fromClient direction of the data
+	 */
+	public void writeStalled(boolean fromClient) {
+		if (fromClient) {
+			if (clientWriteSince == 0) {
+				clientWriteSince = System.nanoTime();
+			}
+		} else if (targetWriteSince == 0) {
+			targetWriteSince = System.nanoTime();
+		}
+	}
+
+	/**
+	 * All data read by a direction, or at least some of it, has been written
+	 *
+	 * @param fromClient direction of the data
+	 */
+	public void writeCompleted(boolean fromClient) {
+		if (fromClient) {
+			if (clientWriteSince != 0) {
+				clientWriteSince = 0;
+			}
+		} else if (targetWriteSince != 0) {
+			targetWriteSince = 0;
+		}
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} of the last read in either direction, or of the creation
+	 */
+	public long getLastReadNanos() {
+		return lastReadNanos;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} since the oldest data is waiting to be written, 0 if none
+	 */
+	public long getWriteStalledNanos() {
+		final long fromClient = clientWriteSince;
+		final long fromTarget = targetWriteSince;
+		if (fromClient == 0 || fromTarget == 0) {
+			return fromClient + fromTarget;
+		}
+		return fromClient - fromTarget < 0 ? fromClient : fromTarget;
+	}
+
+	/**
+	 * Take the bandwidth used by a read. Called for every read, after
+	 * {@link #countBytes(boolean, int)}.
+	 *
+	 * @param bytes
+	 * @return nanos the direction should stop reading, to stay within the limits
+	 */
+	public long throttle(int bytes) {
+		return rateLimiter != null ? rateLimiter.acquire(bytes) : 0;
+	}
+
+	/**
+	 * Must be set before the connection is passed to the engine
+	 *
+	 * @param coalesceNanos time a direction may wait for more data, before writing what it has. 0 to write every read at once.
+	 * @param coalesceBytes write at once when this much is gathered, 0 for a full buffer
+	 */
+	public void setCoalescing(long coalesceNanos, int coalesceBytes) {
+		this.coalesceNanos = coalesceNanos;
+		this.coalesceBytes = coalesceBytes;
+	}
+
+	/**
+	 * @return 0 if reads are written at once
+	 */
+	public long getCoalesceNanos() {
+		return coalesceNanos;
+	}
+
+	/**
+	 * @param bufferSize of the direction
+	 * @return bytes to gather at most, before writing
+	 */
+	public int getCoalesceLimit(int bufferSize) {
+		return coalesceBytes > 0 ? Math.min(coalesceBytes, bufferSize) : bufferSize;
+	}
+
+	/**
+	 * Must be set before the connection is passed to the engine
+	 *
+	 * @param rateLimiter shared by both directions, null for unlimited
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Must be set before the connection is passed to the engine
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(ConnectionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return null if the connection is not counted
+	 */
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	public boolean isClosed() {
+		synchronized (closeListeners) {
+			return closed;
+		}
+	}
+
+	public Socket getClientSocket() {
+		return clientSocket;
+	}
+
+	public Socket getTargetSocket() {
+		return targetSocket;
+	}
+
+	public String getClientName() {
+		return clientName;
+	}
+
+	public String getTargetName() {
+		return targetName;
+	}
+
+	public String getLogPrefix() {
+		return logPrefix;
+	}
+
+}
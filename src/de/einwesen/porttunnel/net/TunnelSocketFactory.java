@@ -6,4 +6,14 @@ import java.net.Socket;
 public interface TunnelSocketFactory {
 	public Socket openSocket(String host, int port) throws IOException;
 	public String getConnectionTypeString();
+
+	/**
+	 * Data of the target, which was already read while opening the socket, e.g.
+	 * behind the response of a proxy. It has to reach the client before anything
+	 * else read from the socket.
+	 *
+	 * @param socket returned by {@link #openSocket(String, int)}
+	 * @return null if there is none, the data is only returned once
+	 */
+	public byte[] takeInitialData(Socket socket);
 }
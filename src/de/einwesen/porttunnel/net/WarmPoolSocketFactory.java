@@ -0,0 +1,252 @@
+package de.einwesen.porttunnel.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+import de.einwesen.porttunnel.log.ConditionalStackLog.STACK_LOGLEVEL;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Wraps another {@link TunnelSocketFactory}, and keeps a number of already
+ * connected sockets per target ready. A client takes one of them, while the
+ * pool refills in the background. Sockets idle longer than <i>maxIdleAge</i>
+ * are closed, so targets (or proxies) dropping idle connections are not an issue.
+ *
+ * Only use it for protocols, where the client speaks first. A greeting sent by
+ * the target on connect would be delivered to whichever client takes the socket.
+ */
+public class WarmPoolSocketFactory implements TunnelSocketFactory {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(WarmPoolSocketFactory.class));
+	private static final long MAINTENANCE_INTERVAL_MS = 1000;
+
+	private static final class IdleSocket {
+		private final Socket socket;
+		private final long connectedNanos = System.nanoTime();
+
+		IdleSocket(Socket socket) {
+			this.socket = socket;
+		}
+	}
+
+	/**
+	 * Idle sockets for one host and port
+	 */
+	private final class TargetPool implements Runnable {
+		private final String host;
+		private final int port;
+		private final Deque<IdleSocket> idleSockets = new ConcurrentLinkedDeque<IdleSocket>();
+		private final AtomicInteger idleCount = new AtomicInteger();
+		private final AtomicInteger refilling = new AtomicInteger();
+
+		TargetPool(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		Socket take() {
+			IdleSocket idle;
+			while ((idle = idleSockets.pollFirst()) != null) {
+				idleCount.decrementAndGet();
+				if (isUsable(idle)) {
+					return idle.socket;
+				}
+				closeQuietly(idle.socket);
+			}
+			return null;
+		}
+
+		void evictExpired() {
+			// Oldest are at the end
+			IdleSocket idle;
+			while ((idle = idleSockets.peekLast()) != null && !isUsable(idle)) {
+				if (idleSockets.removeLastOccurrence(idle)) {
+					idleCount.decrementAndGet();
+					closeQuietly(idle.socket);
+				}
+			}
+		}
+
+		/**
+		 * Schedule as many connects as are missing to reach the minimum
+		 */
+		void refill() {
+			if (closed) {
+				return;
+			}
+			int missing = minIdle - idleCount.get() - refilling.get();
+			while (missing-- > 0) {
+				refilling.incrementAndGet();
+				scheduler.execute(this);
+			}
+		}
+
+		/** Opens a single socket **/
+		@Override
+		public void run() {
+			try {
+				final Socket socket = delegate.openSocket(host, port);
+				if (idleCount.get() < maxIdle && !closed) {
+					idleSockets.offerFirst(new IdleSocket(socket));
+					idleCount.incrementAndGet();
+				} else {
+					closeQuietly(socket);
+				}
+			} catch (Throwable e) {
+				LOGGER.error("Could not prepare connection to " + host + ":" + port, e, STACK_LOGLEVEL.DEBUG);
+			} finally {
+				refilling.decrementAndGet();
+			}
+		}
+
+		void closeAll() {
+			IdleSocket idle;
+			while ((idle = idleSockets.pollFirst()) != null) {
+				idleCount.decrementAndGet();
+				closeQuietly(idle.socket);
+			}
+		}
+	}
+
+	private final TunnelSocketFactory delegate;
+	private final int minIdle;
+	private final int maxIdle;
+	private final long maxIdleAgeNanos;
+
+	private final ConcurrentMap<String, TargetPool> pools = new ConcurrentHashMap<String, TargetPool>();
+	private final ScheduledExecutorService scheduler;
+	private volatile boolean closed = false;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param delegate opens the sockets
+	 * @param minIdle sockets kept ready per target
+	 * @param maxIdle upper limit of ready sockets per target
+	 * @param maxIdleAge in ms, after which a ready socket is closed
+	 */
+	public WarmPoolSocketFactory(TunnelSocketFactory delegate, int minIdle, int maxIdle, long maxIdleAge) {
+		this.delegate = delegate;
+		this.minIdle = minIdle;
+		this.maxIdle = Math.max(minIdle, maxIdle);
+		this.maxIdleAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleAge);
+
+		final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, new NamedThreadFactory("WarmPool"));
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.scheduler = executor;
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for (TargetPool pool : pools.values()) {
+					pool.evictExpired();
+					pool.refill();
+				}
+			}
+		}, MAINTENANCE_INTERVAL_MS, MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Start filling the pool for a target, before the first client arrives
+	 *
+	 * @param host
+	 * @param port
+	 */
+	public void warmUp(String host, int port) {
+		getPool(host, port).refill();
+	}
+
+	@Override
+	public Socket openSocket(String host, int port) throws IOException {
+		final TargetPool pool = getPool(host, port);
+		final Socket socket = pool.take();
+		pool.refill();
+
+		if (socket != null) {
+			hits.increment();
+			return socket;
+		}
+
+		misses.increment();
+		return delegate.openSocket(host, port);
+	}
+
+	private TargetPool getPool(String host, int port) {
+		final String key = host + ":" + port;
+		TargetPool pool = pools.get(key);
+		if (pool == null) {
+			final TargetPool newPool = new TargetPool(host, port);
+			pool = pools.putIfAbsent(key, newPool);
+			if (pool == null) {
+				pool = newPool;
+			}
+		}
+		return pool;
+	}
+
+	private boolean isUsable(IdleSocket idle) {
+		return !idle.socket.isClosed() && System.nanoTime() - idle.connectedNanos < maxIdleAgeNanos;
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			LOGGER.trace("Could not close idle connection", e);
+		}
+	}
+
+	/**
+	 * Stop refilling and close all idle sockets
+	 */
+	public void close() {
+		closed = true;
+		scheduler.shutdownNow();
+		for (TargetPool pool : pools.values()) {
+			pool.closeAll();
+		}
+	}
+
+	@Override
+	public byte[] takeInitialData(Socket socket) {
+		return delegate.takeInitialData(socket);
+	}
+
+	@Override
+	public String getConnectionTypeString() {
+		return delegate.getConnectionTypeString() + " (warm pool " + minIdle + "-" + maxIdle + ")";
+	}
+
+	/**
+	 * @return number of clients served with a ready socket
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of clients, which had to wait for a new socket
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public String getStatsString() {
+		return "hits=" + getHits() + " misses=" + getMisses();
+	}
+
+}
@@ -0,0 +1,380 @@
+package de.einwesen.porttunnel.tools;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Simulates many concurrent clients of a {@link StandInServer}, on a few
+ * selector threads. Every client sends requests one after the other, and
+ * reconnects after a number of them to produce connection churn. Failed
+ * clients reconnect after a short delay.
+ */
+public class LoadClients {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(LoadClients.class));
+
+	private static final long RECONNECT_DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	public enum Pattern {
+		/** Response as large as the request **/
+		ECHO,
+		/** Large request, single byte response **/
+		UPLOAD,
+		/** Empty request, large response **/
+		DOWNLOAD
+	}
+
+	private final InetSocketAddress target;
+	private final int clientCount;
+	private final LoadStats stats;
+
+	private int loopCount = Runtime.getRuntime().availableProcessors();
+	private int payloadSize = 1024;
+	private boolean randomSize = false;
+	private Pattern pattern = Pattern.ECHO;
+	private int requestsPerConnection = 0;
+	private long thinkTimeNanos = 0;
+	private long rampUpNanos = 0;
+
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private final List<Loop> loops = new ArrayList<Loop>();
+	private volatile boolean isRunning = false;
+
+	/**
+	 * One simulated client. Keeps its identity across reconnects.
+	 */
+	private static final class Client {
+		private SocketChannel channel = null;
+		private SelectionKey key = null;
+		private int requestsOnConnection = 0;
+		private final ByteBuffer header = ByteBuffer.allocate(StandInServer.HEADER_SIZE);
+		private final ByteBuffer[] request = new ByteBuffer[2];
+		private int responseRemaining = 0;
+		private long connectStartNanos = 0;
+		private long requestStartNanos = 0;
+		private long wakeUpNanos = 0;
+	}
+
+	/**
+	 * @param target
+	 * @param clientCount concurrent clients
+	 * @param stats to report to
+	 */
+	public LoadClients(InetSocketAddress target, int clientCount, LoadStats stats) {
+		this.target = target;
+		this.clientCount = clientCount;
+		this.stats = stats;
+	}
+
+	public synchronized void start() throws IOException {
+		if (isRunning) {
+			return;
+		}
+		isRunning = true;
+
+		final ByteBuffer payload = ByteBuffer.allocateDirect(Math.max(1, payloadSize));
+		while (payload.hasRemaining()) {
+			payload.put((byte)payload.position());
+		}
+		payload.flip();
+
+		final int count = Math.max(1, Math.min(loopCount, clientCount));
+		final long startNanos = System.nanoTime();
+		for (int i=0; i < count; i++) {
+			final Loop loop = new Loop(payload.asReadOnlyBuffer());
+			loops.add(loop);
+		}
+		// Spread the first connects over the ramp up time
+		for (int c=0; c < clientCount; c++) {
+			final Client client = new Client();
+			client.wakeUpNanos = startNanos + (clientCount > 1 ? rampUpNanos * c / clientCount : 0);
+			loops.get(c % count).timers.add(client);
+		}
+		for (int i=0; i < count; i++) {
+			final Thread t = new Thread(loops.get(i), "LoadClients-" + i);
+			t.setDaemon(true);
+			t.start();
+			threads.add(t);
+		}
+	}
+
+	/**
+	 * Close all clients, and wait for them
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop() throws InterruptedException {
+		isRunning = false;
+		for (Loop loop : loops) {
+			loop.selector.wakeup();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+	}
+
+	private final class Loop implements Runnable {
+
+		private final Selector selector;
+		private final ByteBuffer payload;
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		private final PriorityQueue<Client> timers = new PriorityQueue<Client>(16, new Comparator<Client>() {
+			@Override
+			public int compare(Client c1, Client c2) {
+				return Long.compare(c1.wakeUpNanos - c2.wakeUpNanos, 0);
+			}
+		});
+
+		Loop(ByteBuffer payload) throws IOException {
+			this.selector = Selector.open();
+			this.payload = payload;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (isRunning) {
+					final Client next = timers.peek();
+					if (next == null) {
+						selector.select();
+					} else {
+						final long waitMillis = TimeUnit.NANOSECONDS.toMillis(next.wakeUpNanos - System.nanoTime());
+						if (waitMillis > 0) {
+							selector.select(waitMillis);
+						} else {
+							selector.selectNow();
+						}
+					}
+
+					final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						final SelectionKey key = keys.next();
+						keys.remove();
+						handle(key, (Client)key.attachment());
+					}
+
+					runTimers();
+				}
+			} catch (IOException e) {
+				LOGGER.error("Load client loop failed", e);
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					disconnect((Client)key.attachment());
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					LOGGER.trace("Could not close selector", e);
+				}
+			}
+		}
+
+		private void runTimers() {
+			final long now = System.nanoTime();
+			Client client;
+			while ((client = timers.peek()) != null && client.wakeUpNanos - now <= 0) {
+				timers.poll();
+				if (client.channel == null) {
+					connect(client);
+				} else {
+					sendRequest(client);
+				}
+			}
+		}
+
+		private void schedule(Client client, long delayNanos) {
+			client.wakeUpNanos = System.nanoTime() + delayNanos;
+			timers.add(client);
+		}
+
+		private void connect(Client client) {
+			try {
+				client.connectStartNanos = System.nanoTime();
+				client.requestsOnConnection = 0;
+				client.channel = SocketChannel.open();
+				client.channel.configureBlocking(false);
+				client.channel.socket().setTcpNoDelay(true);
+				if (client.channel.connect(target)) {
+					client.key = client.channel.register(selector, 0, client);
+					connected(client);
+				} else {
+					client.key = client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+				}
+			} catch (IOException e) {
+				failed(client, e);
+			}
+		}
+
+		private void handle(SelectionKey key, Client client) {
+			if (key != client.key || !key.isValid()) {
+				// Of a connection closed meanwhile
+				return;
+			}
+			try {
+				if (key.isConnectable()) {
+					client.channel.finishConnect();
+					connected(client);
+				} else if (key.isWritable()) {
+					writeRequest(client);
+				} else if (key.isReadable()) {
+					readResponse(client);
+				}
+			} catch (IOException e) {
+				failed(client, e);
+			}
+		}
+
+		private void connected(Client client) {
+			stats.connected(System.nanoTime() - client.connectStartNanos);
+			sendRequest(client);
+		}
+
+		private void sendRequest(Client client) {
+			final int size = randomSize ? ThreadLocalRandom.current().nextInt(payloadSize) + 1 : payloadSize;
+			final int bodySize = pattern == Pattern.DOWNLOAD ? 0 : size;
+			final int responseSize = pattern == Pattern.UPLOAD ? 1 : size;
+
+			StandInServer.writeHeader(client.header, bodySize, responseSize);
+			final ByteBuffer body = payload.duplicate();
+			body.limit(bodySize);
+			client.request[0] = client.header;
+			client.request[1] = body;
+			client.responseRemaining = responseSize;
+			client.requestStartNanos = System.nanoTime();
+
+			try {
+				writeRequest(client);
+			} catch (IOException e) {
+				failed(client, e);
+			}
+		}
+
+		private void writeRequest(Client client) throws IOException {
+			final long written = client.channel.write(client.request);
+			stats.bytesSent.add(written);
+			client.key.interestOps(client.request[1].hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+
+		private void readResponse(Client client) throws IOException {
+			while (client.responseRemaining > 0) {
+				readBuffer.clear();
+				final int read = client.channel.read(readBuffer);
+				if (read < 0) {
+					throw new EOFException("Closed by the tunnel with " + client.responseRemaining + " bytes outstanding");
+				} else if (read == 0) {
+					return;
+				}
+				stats.bytesReceived.add(read);
+				client.responseRemaining -= read;
+			}
+
+			stats.requestCompleted(System.nanoTime() - client.requestStartNanos);
+			client.requestsOnConnection++;
+
+			if (!isRunning) {
+				return;
+			} else if (requestsPerConnection > 0 && client.requestsOnConnection >= requestsPerConnection) {
+				disconnect(client);
+				connect(client);
+			} else if (thinkTimeNanos > 0) {
+				client.key.interestOps(0);
+				schedule(client, thinkTimeNanos);
+			} else {
+				sendRequest(client);
+			}
+		}
+
+		private void failed(Client client, IOException e) {
+			if (!isRunning) {
+				return;
+			}
+			stats.error();
+			LOGGER.debug("Client failed: " + e);
+			disconnect(client);
+			schedule(client, RECONNECT_DELAY);
+		}
+
+		private void disconnect(Client client) {
+			if (client.channel == null) {
+				return;
+			}
+			if (client.channel.isConnected()) {
+				stats.closed();
+			}
+			try {
+				client.channel.close();
+			} catch (IOException e) {
+				LOGGER.trace("Could not close client", e);
+			}
+			client.channel = null;
+			client.key = null;
+		}
+	}
+
+	/**
+	 * @param loopCount selector threads driving the clients
+	 */
+	public void setLoopCount(int loopCount) {
+		this.loopCount = loopCount;
+	}
+
+	/**
+	 * @param payloadSize bytes per request and/or response, see {@link Pattern}
+	 */
+	public void setPayloadSize(int payloadSize) {
+		this.payloadSize = Math.max(1, payloadSize);
+	}
+
+	/**
+	 * @param randomSize if true, every request uses a random size up to the payload size
+	 */
+	public void setRandomSize(boolean randomSize) {
+		this.randomSize = randomSize;
+	}
+
+	public void setPattern(Pattern pattern) {
+		this.pattern = pattern;
+	}
+
+	/**
+	 * @param requestsPerConnection after which a client reconnects, 0 to keep the connection
+	 */
+	public void setRequestsPerConnection(int requestsPerConnection) {
+		this.requestsPerConnection = requestsPerConnection;
+	}
+
+	/**
+	 * @param thinkTime in ms, between a response and the next request
+	 */
+	public void setThinkTime(long thinkTime) {
+		this.thinkTimeNanos = TimeUnit.MILLISECONDS.toNanos(thinkTime);
+	}
+
+	/**
+	 * @param rampUpTime in ms, over which the clients connect for the first time
+	 */
+	public void setRampUpTime(long rampUpTime) {
+		this.rampUpNanos = TimeUnit.MILLISECONDS.toNanos(rampUpTime);
+	}
+
+}
@@ -0,0 +1,443 @@
+package de.einwesen.porttunnel.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.LocalPortRedirect;
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+import de.einwesen.porttunnel.log.SimpleSystemOutLog;
+import de.einwesen.porttunnel.metrics.Histogram;
+import de.einwesen.porttunnel.metrics.MetricsRegistry;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Load and soak test: Starts a {@link StandInServer} and a {@link LocalPortRedirect}
+ * in a process of its own forwarding to it, and drives {@link LoadClients}
+ * through the tunnel for a while.
+ *
+ * Reports connections and requests per second, throughput and latency of the
+ * clients, together with threads, heap and file descriptors of the tunnel,
+ * as read from its metrics endpoint. Heap and file descriptors are sampled,
+ * the thread peak is the one tracked by the JVM of the tunnel.
+ *
+ * Afterwards it waits for the tunnel to settle, and reports a suspected leak if
+ * threads or file descriptors do not go back to where they were before the load.
+ * Exits with {@value #EXIT_LEAK} then.
+ *
+ * Options after <i>--</i> are passed on to the tunnel, e.g. <i>-- -en nio -bs 65536</i>.
+ */
+public class LoadGenerator {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(LoadGenerator.class));
+
+	public static final int EXIT_FAILED = 1;
+	public static final int EXIT_LEAK = 2;
+
+	private static final String OPT_CLIENTS = "c";
+	private static final String OPT_DURATION = "d";
+	private static final String OPT_PAYLOAD = "p";
+	private static final String OPT_PATTERN = "pt";
+	private static final String OPT_RANDOMSIZE = "rs";
+	private static final String OPT_REQUESTS = "r";
+	private static final String OPT_THINKTIME = "tt";
+	private static final String OPT_RAMPUP = "ru";
+	private static final String OPT_INTERVAL = "i";
+	private static final String OPT_LOOPS = "l";
+	private static final String OPT_SETTLE = "s";
+	private static final String OPT_JVMOPTS = "jo";
+	private static final String OPT_TUNNELLOG = "tl";
+	private static final String OPT_HELP = "h";
+
+	private static final String TUNNEL_ARGS_SEPARATOR = "--";
+	private static final long STARTUP_TIMEOUT = 30000;
+	/** Threads and file descriptors, which may be left over without being a leak **/
+	private static final int LEAK_TOLERANCE = 2;
+
+	private static final String METRIC_THREADS = MetricsRegistry.PREFIX + "jvm_threads";
+	private static final String METRIC_THREADS_PEAK = MetricsRegistry.PREFIX + "jvm_threads_peak";
+	private static final String METRIC_HEAP = MetricsRegistry.PREFIX + "jvm_heap_used_bytes";
+	private static final String METRIC_FDS = MetricsRegistry.PREFIX + "process_open_fds";
+	private static final String METRIC_ACTIVE = MetricsRegistry.PREFIX + "connections_active";
+
+	private final Process tunnel;
+	private final int metricsPort;
+
+	private long peakThreads = 0;
+	private long peakHeap = 0;
+	private long peakFds = 0;
+
+	private LoadGenerator(Process tunnel, int metricsPort) {
+		this.tunnel = tunnel;
+		this.metricsPort = metricsPort;
+	}
+
+	public static void main(String[] args) {
+		int exitCode = EXIT_FAILED;
+		try {
+			exitCode = run(args);
+		} catch (ParseException e) {
+			printUsage(e);
+		} catch (Throwable t) {
+			LOGGER.fatal("Load test failed", t);
+		}
+		SimpleSystemOutLog.flush();
+		System.exit(exitCode);
+	}
+
+	private static int run(String[] args) throws Exception {
+		final int separator = Arrays.asList(args).indexOf(TUNNEL_ARGS_SEPARATOR);
+		final String[] ownArgs = separator >= 0 ? Arrays.copyOfRange(args, 0, separator) : args;
+		final String[] tunnelArgs = separator >= 0 ? Arrays.copyOfRange(args, separator + 1, args.length) : new String[0];
+
+		final CommandLine cmdLine = new DefaultParser().parse(buildOptions(), ownArgs);
+		if (cmdLine.hasOption(OPT_HELP)) {
+			printUsage(null);
+			return 0;
+		}
+
+		final int clientCount = getInt(cmdLine, OPT_CLIENTS, 1000);
+		final long duration = getInt(cmdLine, OPT_DURATION, 60) * 1000L;
+		final long interval = getInt(cmdLine, OPT_INTERVAL, 5) * 1000L;
+		final long settleTime = getInt(cmdLine, OPT_SETTLE, 75) * 1000L;
+		final LoadClients.Pattern pattern;
+		try {
+			pattern = LoadClients.Pattern.valueOf(cmdLine.getOptionValue(OPT_PATTERN, "echo").toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			throw new ParseException("Unknown pattern " + cmdLine.getOptionValue(OPT_PATTERN));
+		}
+
+		final StandInServer server = new StandInServer(0, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+		server.start();
+
+		final int tunnelPort = findFreePort();
+		final int metricsPort = findFreePort();
+		final File tunnelLog = cmdLine.hasOption(OPT_TUNNELLOG) ? new File(cmdLine.getOptionValue(OPT_TUNNELLOG))
+																: File.createTempFile("porttunnel-load-", ".log");
+		final List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		if (cmdLine.hasOption(OPT_JVMOPTS)) {
+			command.addAll(Arrays.asList(cmdLine.getOptionValue(OPT_JVMOPTS).trim().split("\\s+")));
+		}
+		command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), LocalPortRedirect.class.getName(),
+									 "-lp", String.valueOf(tunnelPort),
+									 "-rh", InetAddress.getLoopbackAddress().getHostAddress(),
+									 "-rp", String.valueOf(server.getPort()),
+									 "-mp", String.valueOf(metricsPort)));
+		command.addAll(Arrays.asList(tunnelArgs));
+
+		LOGGER.info("Starting tunnel, logging to " + tunnelLog + ": " + command);
+		final Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(tunnelLog).start();
+		final LoadGenerator generator = new LoadGenerator(process, metricsPort);
+		try {
+			return generator.runLoad(cmdLine, new InetSocketAddress(InetAddress.getLoopbackAddress(), tunnelPort),
+									 clientCount, pattern, duration, interval, settleTime);
+		} finally {
+			generator.stopTunnel();
+			server.close();
+		}
+	}
+
+	private int runLoad(CommandLine cmdLine, InetSocketAddress target, int clientCount, LoadClients.Pattern pattern,
+						long duration, long interval, long settleTime) throws Exception {
+		final Map<String, Double> baseline = awaitTunnel();
+		LOGGER.info("Tunnel is up: threads=" + format(baseline.get(METRIC_THREADS)) + " fds=" + format(baseline.get(METRIC_FDS)));
+
+		final LoadStats stats = new LoadStats();
+		final LoadClients clients = new LoadClients(target, clientCount, stats);
+		clients.setPattern(pattern);
+		clients.setPayloadSize(getInt(cmdLine, OPT_PAYLOAD, 1024));
+		clients.setRandomSize(cmdLine.hasOption(OPT_RANDOMSIZE));
+		clients.setRequestsPerConnection(getInt(cmdLine, OPT_REQUESTS, 0));
+		clients.setThinkTime(getInt(cmdLine, OPT_THINKTIME, 0));
+		clients.setRampUpTime(getInt(cmdLine, OPT_RAMPUP, 5) * 1000L);
+		clients.setLoopCount(getInt(cmdLine, OPT_LOOPS, Runtime.getRuntime().availableProcessors()));
+
+		LOGGER.info("Running " + clientCount + " clients (" + pattern + ") for " + duration / 1000 + "s");
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+		clients.start();
+
+		long lastReport = start;
+		long lastConnects = 0;
+		long lastRequests = 0;
+		long lastSent = 0;
+		long lastReceived = 0;
+		long now;
+		while ((now = System.nanoTime()) - end < 0) {
+			Thread.sleep(Math.min(interval, Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - now))));
+			if (!isTunnelAlive()) {
+				clients.stop();
+				LOGGER.error("Tunnel exited with " + tunnel.exitValue() + " during the load test");
+				return EXIT_FAILED;
+			}
+
+			now = System.nanoTime();
+			final double seconds = (now - lastReport) / 1e9;
+			final long connects = stats.getConnects();
+			final long requests = stats.getRequests();
+			final long sent = stats.getBytesSent();
+			final long received = stats.getBytesReceived();
+			final long[] latency = stats.nextInterval().getQuantiles(0.5, 0.99, 0.999);
+
+			LOGGER.info(String.format(Locale.ROOT, "[%4ds] conn/s=%.0f req/s=%.0f MB/s out=%.1f in=%.1f open=%d errors=%d | latency us p50=%d p99=%d p99.9=%d | %s",
+					TimeUnit.NANOSECONDS.toSeconds(now - start),
+					(connects - lastConnects) / seconds, (requests - lastRequests) / seconds,
+					(sent - lastSent) / seconds / (1024 * 1024), (received - lastReceived) / seconds / (1024 * 1024),
+					stats.getOpenConnections(), stats.getErrors(),
+					latency[0], latency[1], latency[2], describeTunnel(scrape())));
+
+			lastReport = now;
+			lastConnects = connects;
+			lastRequests = requests;
+			lastSent = sent;
+			lastReceived = received;
+		}
+
+		clients.stop();
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		final Histogram latency = stats.getLatency();
+		final long[] latencyQuantiles = latency.getQuantiles(0.5, 0.9, 0.99, 0.999);
+		final long[] connectQuantiles = stats.getConnectTime().getQuantiles(0.5, 0.99);
+
+		LOGGER.info("Summary:");
+		LOGGER.info(String.format(Locale.ROOT, "  Connections: %d (%.0f/s), peak open %d, errors %d",
+				stats.getConnects(), stats.getConnects() / seconds, stats.getPeakConnections(), stats.getErrors()));
+		LOGGER.info(String.format(Locale.ROOT, "  Requests: %d (%.0f/s), throughput out %.1f MB/s, in %.1f MB/s",
+				stats.getRequests(), stats.getRequests() / seconds,
+				stats.getBytesSent() / seconds / (1024 * 1024), stats.getBytesReceived() / seconds / (1024 * 1024)));
+		LOGGER.info(String.format(Locale.ROOT, "  Latency us: p50=%d p90=%d p99=%d p99.9=%d max=%d",
+				latencyQuantiles[0], latencyQuantiles[1], latencyQuantiles[2], latencyQuantiles[3], latency.getMax()));
+		LOGGER.info(String.format(Locale.ROOT, "  Connect time us: p50=%d p99=%d", connectQuantiles[0], connectQuantiles[1]));
+		LOGGER.info(String.format(Locale.ROOT, "  Tunnel peak: threads=%d heap=%.1fMB fds=%d",
+				peakThreads, peakHeap / (1024.0 * 1024), peakFds));
+
+		if (stats.getRequests() == 0) {
+			LOGGER.error("No request completed");
+			return EXIT_FAILED;
+		}
+		return checkLeaks(baseline, settleTime) ? 0 : EXIT_LEAK;
+	}
+
+	/**
+	 * Wait for the connections to end, and for threads and file descriptors
+	 * to go back to the baseline
+	 *
+	 * @return true if they did in time
+	 */
+	private boolean checkLeaks(Map<String, Double> baseline, long settleTime) throws InterruptedException {
+		LOGGER.info("Waiting up to " + settleTime / 1000 + "s for the tunnel to settle");
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(settleTime);
+		Map<String, Double> current;
+		while (true) {
+			current = scrape();
+			if (settled(baseline, current)) {
+				LOGGER.info("Tunnel settled after " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s: " + describeTunnel(current));
+				return true;
+			}
+			if (System.nanoTime() - deadline > 0 || !isTunnelAlive()) {
+				break;
+			}
+			Thread.sleep(1000);
+		}
+
+		LOGGER.error("Possible leak, tunnel did not settle: " + describeTunnel(current)
+					 + ", before the load threads=" + format(baseline.get(METRIC_THREADS)) + " fds=" + format(baseline.get(METRIC_FDS)));
+		return false;
+	}
+
+	private static boolean settled(Map<String, Double> baseline, Map<String, Double> current) {
+		return value(current, METRIC_ACTIVE) <= 0
+			&& value(current, METRIC_THREADS) <= value(baseline, METRIC_THREADS) + LEAK_TOLERANCE
+			&& value(current, METRIC_FDS) <= value(baseline, METRIC_FDS) + LEAK_TOLERANCE;
+	}
+
+	private Map<String, Double> awaitTunnel() throws IOException, InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STARTUP_TIMEOUT);
+		while (true) {
+			if (!isTunnelAlive()) {
+				throw new IOException("Tunnel exited with " + tunnel.exitValue() + " on startup");
+			}
+			try {
+				return readMetrics();
+			} catch (IOException e) {
+				if (System.nanoTime() - deadline > 0) {
+					throw new IOException("Tunnel did not start within " + STARTUP_TIMEOUT + "ms", e);
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Read the metrics of the tunnel, and track the peaks
+	 *
+	 * @return empty if they could not be read
+	 */
+	private Map<String, Double> scrape() {
+		try {
+			final Map<String, Double> metrics = readMetrics();
+			// The JVM tracks its own peak, so short spikes between two scrapes are not missed
+			peakThreads = Math.max(peakThreads, (long)Math.max(value(metrics, METRIC_THREADS_PEAK), value(metrics, METRIC_THREADS)));
+			peakHeap = Math.max(peakHeap, (long)value(metrics, METRIC_HEAP));
+			peakFds = Math.max(peakFds, (long)value(metrics, METRIC_FDS));
+			return metrics;
+		} catch (IOException e) {
+			LOGGER.warn("Could not read tunnel metrics: " + e);
+			return new HashMap<String, Double>();
+		}
+	}
+
+	/**
+	 * @return values by metric name, summed across all labels
+	 */
+	private Map<String, Double> readMetrics() throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection)new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), metricsPort, "/metrics").openConnection();
+		connection.setConnectTimeout(1000);
+		connection.setReadTimeout(5000);
+		final Map<String, Double> result = new HashMap<String, Double>();
+		final BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				final int valueSeparator = line.lastIndexOf(' ');
+				if (line.startsWith("#") || valueSeparator <= 0) {
+					continue;
+				}
+				final int labels = line.indexOf('{');
+				final String name = line.substring(0, labels > 0 ? labels : valueSeparator);
+				try {
+					final double value = Double.parseDouble(line.substring(valueSeparator + 1));
+					final Double previous = result.get(name);
+					result.put(name, previous != null ? previous + value : value);
+				} catch (NumberFormatException e) {
+					LOGGER.trace("Ignoring metric line " + line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	private static double value(Map<String, Double> metrics, String name) {
+		final Double value = metrics.get(name);
+		return value != null ? value : 0;
+	}
+
+	private static String describeTunnel(Map<String, Double> metrics) {
+		return String.format(Locale.ROOT, "tunnel active=%s threads=%s heap=%.1fMB fds=%s",
+				format(metrics.get(METRIC_ACTIVE)), format(metrics.get(METRIC_THREADS)),
+				value(metrics, METRIC_HEAP) / (1024 * 1024), format(metrics.get(METRIC_FDS)));
+	}
+
+	private static String format(Double value) {
+		return value != null ? String.valueOf(value.longValue()) : "?";
+	}
+
+	private boolean isTunnelAlive() {
+		try {
+			tunnel.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	private void stopTunnel() throws InterruptedException {
+		if (isTunnelAlive()) {
+			// Lets the tunnel drain and log its stats
+			tunnel.destroy();
+			if (!tunnel.waitFor(STARTUP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				tunnel.destroyForcibly();
+			}
+		}
+	}
+
+	private static int findFreePort() throws IOException {
+		final ServerSocket probe = new ServerSocket(0);
+		try {
+			return probe.getLocalPort();
+		} finally {
+			probe.close();
+		}
+	}
+
+	private static int getInt(CommandLine cmdLine, String option, int defaultValue) throws ParseException {
+		final String value = cmdLine.getOptionValue(option);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ParseException("Option " + option + ": Not a number [" + value + "]");
+		}
+	}
+
+	private static Options buildOptions() {
+		final Options options = new Options();
+		options.addOption(Option.builder(OPT_HELP).longOpt("help").desc("Show this help").build());
+		options.addOption(Option.builder(OPT_CLIENTS).longOpt("clients").hasArg().argName("count")
+								.desc("Concurrent clients. Defaults to 1000.").build());
+		options.addOption(Option.builder(OPT_DURATION).longOpt("duration").hasArg().argName("seconds")
+								.desc("Duration of the load. Defaults to 60.").build());
+		options.addOption(Option.builder(OPT_PAYLOAD).longOpt("payload").hasArg().argName("bytes")
+								.desc("Size of requests and/or responses. Defaults to 1024.").build());
+		options.addOption(Option.builder(OPT_PATTERN).longOpt("pattern").hasArg().argName("echo|upload|download")
+								.desc("echo: response as large as the request. upload: large requests. download: large responses. Defaults to echo.").build());
+		options.addOption(Option.builder(OPT_RANDOMSIZE).longOpt("randomsize")
+								.desc("Use a random size up to the payload size for every request").build());
+		options.addOption(Option.builder(OPT_REQUESTS).longOpt("requests").hasArg().argName("count")
+								.desc("Requests per connection, before the client reconnects. 0 keeps the connections for the whole run. Defaults to 0.").build());
+		options.addOption(Option.builder(OPT_THINKTIME).longOpt("thinktime").hasArg().argName("ms")
+								.desc("Pause of every client between a response and its next request. Defaults to 0.").build());
+		options.addOption(Option.builder(OPT_RAMPUP).longOpt("rampup").hasArg().argName("seconds")
+								.desc("Spread the first connects of the clients over this time. Defaults to 5.").build());
+		options.addOption(Option.builder(OPT_INTERVAL).longOpt("interval").hasArg().argName("seconds")
+								.desc("Between two reports. Defaults to 5.").build());
+		options.addOption(Option.builder(OPT_LOOPS).longOpt("loops").hasArg().argName("count")
+								.desc("Threads driving the clients. Defaults to the number of cores.").build());
+		options.addOption(Option.builder(OPT_SETTLE).longOpt("settle").hasArg().argName("seconds")
+								.desc("After the load, wait this long for threads and file descriptors of the tunnel to go back to where they were before. Idle pool threads live for 60s. Defaults to 75.").build());
+		options.addOption(Option.builder(OPT_JVMOPTS).longOpt("jvmopts").hasArg().argName("options")
+								.desc("JVM options of the tunnel process, e.g. \"-Xmx256m\"").build());
+		options.addOption(Option.builder(OPT_TUNNELLOG).longOpt("tunnellog").hasArg().argName("file")
+								.desc("Output of the tunnel process. Defaults to a temporary file.").build());
+		return options;
+	}
+
+	private static void printUsage(ParseException e) {
+		final HelpFormatter hf = new HelpFormatter();
+		hf.setOptionComparator(null);
+		hf.printHelp(LoadGenerator.class.getSimpleName() + " [options] [-- tunnel options]",
+					 "Runs a load test against a tunnel forwarding to a stand-in server." + hf.getNewLine() + hf.getNewLine(),
+					 buildOptions(), e != null ? hf.getNewLine() + e.getMessage() : null);
+	}
+
+}
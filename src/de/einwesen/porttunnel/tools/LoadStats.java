@@ -0,0 +1,99 @@
+package de.einwesen.porttunnel.tools;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.einwesen.porttunnel.metrics.Histogram;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * What the clients of a load test observed. Latencies are kept for the whole
+ * run, and separately for the current report interval.
+ */
+public class LoadStats {
+
+	final LongAdder connects = new LongAdder();
+	final LongAdder requests = new LongAdder();
+	final LongAdder errors = new LongAdder();
+	final LongAdder bytesSent = new LongAdder();
+	final LongAdder bytesReceived = new LongAdder();
+	final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicInteger peakConnections = new AtomicInteger();
+
+	private final Histogram connectTime = new Histogram();
+	private final Histogram latency = new Histogram();
+	private final AtomicReference<Histogram> intervalLatency = new AtomicReference<Histogram>(new Histogram());
+
+	void connected(long connectNanos) {
+		connects.increment();
+		connectTime.recordNanos(connectNanos);
+		final int open = openConnections.incrementAndGet();
+		int peak;
+		while (open > (peak = peakConnections.get()) && !peakConnections.compareAndSet(peak, open)) {
+			// retry
+		}
+	}
+
+	void closed() {
+		openConnections.decrementAndGet();
+	}
+
+	void requestCompleted(long latencyNanos) {
+		requests.increment();
+		latency.recordNanos(latencyNanos);
+		intervalLatency.get().recordNanos(latencyNanos);
+	}
+
+	void error() {
+		errors.increment();
+	}
+
+	/**
+	 * Start a new report interval
+	 *
+	 * @return latencies of the interval just ended
+	 */
+	public Histogram nextInterval() {
+		return intervalLatency.getAndSet(new Histogram());
+	}
+
+	public long getConnects() {
+		return connects.sum();
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	public int getPeakConnections() {
+		return peakConnections.get();
+	}
+
+	public Histogram getConnectTime() {
+		return connectTime;
+	}
+
+	public Histogram getLatency() {
+		return latency;
+	}
+
+}
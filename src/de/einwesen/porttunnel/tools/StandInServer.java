@@ -0,0 +1,268 @@
+package de.einwesen.porttunnel.tools;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.LogFactory;
+
+import de.einwesen.porttunnel.log.ConditionalStackLog;
+
+/**
+ *
+ * @author EinWesen
+ *
+ * Target of a load test. Speaks a minimal request/response protocol: A request
+ * is a header of two ints, the size of its body and the size of the response
+ * wanted, followed by the body. The body is discarded, and the response is
+ * filled with a fixed pattern.
+ *
+ * Connections are spread across a few selector loops, so the server handles
+ * thousands of them without becoming the bottleneck itself.
+ */
+public class StandInServer {
+
+	private static final ConditionalStackLog LOGGER = ConditionalStackLog.getInstance(LogFactory.getLog(StandInServer.class));
+
+	public static final int HEADER_SIZE = 8;
+	/** Largest body or response, which is accepted **/
+	public static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final ServerSocketChannel srvChannel;
+	private final Loop[] loops;
+	private final ByteBuffer responseData;
+	private volatile boolean isRunning = false;
+
+	/**
+	 * State of one connection
+	 */
+	private static final class Session {
+		private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		/** -1 while reading the header **/
+		private int bodyRemaining = -1;
+		private int responseSize = 0;
+		private int responseRemaining = 0;
+	}
+
+	/**
+	 * @param port to listen on, 0 for any free port
+	 * @param loopCount number of selector threads
+	 * @throws IOException
+	 */
+	public StandInServer(int port, int loopCount) throws IOException {
+		this.srvChannel = ServerSocketChannel.open();
+		this.srvChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+		this.loops = new Loop[Math.max(1, loopCount)];
+		for (int i=0; i < loops.length; i++) {
+			loops[i] = new Loop();
+		}
+
+		final ByteBuffer data = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		while (data.hasRemaining()) {
+			data.put((byte)data.position());
+		}
+		data.flip();
+		this.responseData = data.asReadOnlyBuffer();
+	}
+
+	public void start() {
+		isRunning = true;
+		for (int i=0; i < loops.length; i++) {
+			final Thread t = new Thread(loops[i], "StandIn-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		final Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		}, "StandIn-Acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void acceptConnections() {
+		int next = 0;
+		while (isRunning) {
+			try {
+				final SocketChannel channel = srvChannel.accept();
+				channel.socket().setTcpNoDelay(true);
+				loops[next++ % loops.length].register(channel);
+			} catch (IOException e) {
+				if (isRunning) {
+					LOGGER.error("Stand-in server could not accept", e);
+				}
+			}
+		}
+	}
+
+	public int getPort() {
+		return srvChannel.socket().getLocalPort();
+	}
+
+	public void close() {
+		isRunning = false;
+		try {
+			srvChannel.close();
+		} catch (IOException e) {
+			LOGGER.trace("Could not close stand-in server", e);
+		}
+		for (Loop loop : loops) {
+			loop.selector.wakeup();
+		}
+	}
+
+	private final class Loop implements Runnable {
+
+		private final Selector selector;
+		private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+		private final ByteBuffer scratch = ByteBuffer.allocateDirect(CHUNK_SIZE);
+
+		Loop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		void register(SocketChannel channel) {
+			pending.add(channel);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (isRunning) {
+					selector.select();
+
+					SocketChannel channel;
+					while ((channel = pending.poll()) != null) {
+						channel.configureBlocking(false);
+						channel.register(selector, SelectionKey.OP_READ, new Session());
+					}
+
+					final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						final SelectionKey key = keys.next();
+						keys.remove();
+						try {
+							handle(key);
+						} catch (IOException e) {
+							LOGGER.trace("Stand-in connection closed", e);
+							close(key);
+						}
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.error("Stand-in server loop failed", e);
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					close(key);
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					LOGGER.trace("Could not close selector", e);
+				}
+			}
+		}
+
+		private void handle(SelectionKey key) throws IOException {
+			final SocketChannel channel = (SocketChannel)key.channel();
+			final Session session = (Session)key.attachment();
+
+			while (true) {
+				if (session.responseRemaining > 0 && !writeResponse(channel, session)) {
+					key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+
+				if (session.bodyRemaining < 0) {
+					if (channel.read(session.header) < 0) {
+						close(key);
+						return;
+					}
+					if (session.header.hasRemaining()) {
+						key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					session.header.flip();
+					session.bodyRemaining = session.header.getInt();
+					session.responseSize = session.header.getInt();
+					session.header.clear();
+					if (session.bodyRemaining < 0 || session.bodyRemaining > MAX_MESSAGE_SIZE
+						|| session.responseSize < 0 || session.responseSize > MAX_MESSAGE_SIZE) {
+						throw new IOException("Invalid request header " + session.bodyRemaining + "/" + session.responseSize);
+					}
+				}
+
+				while (session.bodyRemaining > 0) {
+					scratch.clear();
+					scratch.limit(Math.min(scratch.capacity(), session.bodyRemaining));
+					final int read = channel.read(scratch);
+					if (read < 0) {
+						close(key);
+						return;
+					} else if (read == 0) {
+						key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					session.bodyRemaining -= read;
+				}
+
+				session.bodyRemaining = -1;
+				session.responseRemaining = session.responseSize;
+			}
+		}
+
+		/**
+		 * @return true if the response was written completely
+		 */
+		private boolean writeResponse(SocketChannel channel, Session session) throws IOException {
+			while (session.responseRemaining > 0) {
+				final ByteBuffer data = responseData.duplicate();
+				data.limit(Math.min(data.capacity(), session.responseRemaining));
+				final int written = channel.write(data);
+				if (written == 0) {
+					return false;
+				}
+				session.responseRemaining -= written;
+			}
+			return true;
+		}
+
+		private void close(SelectionKey key) {
+			key.cancel();
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				LOGGER.trace("Could not close stand-in connection", e);
+			}
+		}
+	}
+
+	/**
+	 * Fills the header of a request
+	 *
+	 * @param header at least {@value #HEADER_SIZE} bytes
+	 * @param bodySize
+	 * @param responseSize
+	 */
+	static void writeHeader(ByteBuffer header, int bodySize, int responseSize) {
+		header.clear();
+		header.putInt(bodySize);
+		header.putInt(responseSize);
+		header.flip();
+	}
+
+}